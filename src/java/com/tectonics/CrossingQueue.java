@@ -0,0 +1,164 @@
+package com.tectonics;
+
+import java.util.Arrays;
+
+import com.tectonics.util.FixedPoint;
+import com.tectonics.util.IndexedMinHeap;
+import com.tectonics.plates.Region;
+
+/**
+ * <p>Predicts when each region next moves into another cell.</p>
+ *
+ * <p>Between crossings a region's cell does not change, so its position only has to be
+ * brought up to date (materialized) when it crosses or when its velocity changes. The
+ * queue keeps, by region id, the simulated time its position was last materialized at,
+ * and in an indexed heap the time of its next event: its predicted crossing, or an
+ * earlier refresh time by which the velocity changes held back for it must be applied.
+ * Only the regions whose events fall in a step are touched in that step.</p>
+ *
+ * <p>An event that is not a crossing just finds the region still in its cell; it is
+ * brought up to date and scheduled again.</p>
+ */
+public class CrossingQueue {
+
+    private final IndexedMinHeap mHeap = new IndexedMinHeap(64);
+
+    /**
+     * The simulated time each region's position was last materialized at, by region id
+     * (NaN for regions not tracked)
+     */
+    private double[] mBaseTimes = new double[0];
+
+    /**
+     * The number of regions tracked
+     */
+    private int mSize = 0;
+
+    /**
+     * @param id a region id
+     * @return whether the region is tracked
+     */
+    public boolean contains(final int id) {
+        return id >= 0 && id < mBaseTimes.length && !Double.isNaN(mBaseTimes[id]);
+    }
+
+    /**
+     * @param id a tracked region id
+     * @return the simulated time the region's position was last materialized at
+     */
+    public double getBaseTime(final int id) {
+        return mBaseTimes[id];
+    }
+
+    /**
+     * @return the number of regions tracked
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Records that a region's position was materialized at a time and queues its next
+     * event: its next crossing, predicted from its current position and velocity, or the
+     * refresh time if that is earlier.
+     * @param region the region
+     * @param time the simulated time its position is valid at
+     * @param refresh the simulated time the region must be visited by even if it does not
+     *        cross (infinite if never)
+     */
+    public void schedule(final Region region, final double time, final double refresh) {
+        final int id = region.getId();
+
+        if (id >= mBaseTimes.length) {
+            final int length = mBaseTimes.length;
+            mBaseTimes = Arrays.copyOf(mBaseTimes, Math.max(2 * length, id + 1));
+            Arrays.fill(mBaseTimes, length, mBaseTimes.length, Double.NaN);
+        }
+
+        if (Double.isNaN(mBaseTimes[id])) ++mSize;
+
+        mBaseTimes[id] = time;
+
+        final double next = Math.min(predict(region), refresh);
+
+        if (Double.isInfinite(next)) mHeap.remove(id);
+        else mHeap.put(id, next);
+    }
+
+    /**
+     * @param region a tracked region
+     * @return the predicted time of its next crossing (infinite if never)
+     */
+    private double predict(final Region region) {
+        final double time = mBaseTimes[region.getId()];
+        final double delay = Math.min(
+            timeToCross(region.getFixedPositionX(), region.getFixedVelocityX()),
+            timeToCross(region.getFixedPositionY(), region.getFixedVelocityY()));
+
+        // At large simulated times a tiny delay can vanish when added to the time, which
+        // would queue the crossing at the time already reached forever. The next double
+        // is far enough for the region to cross, since it covers the delay.
+        final double next = time + delay;
+        return next > time ? next : Math.nextUp(time);
+    }
+
+    /**
+     * Stops tracking a region.
+     * @param id the region id
+     */
+    public void remove(final int id) {
+        mHeap.remove(id);
+
+        if (contains(id)) {
+            mBaseTimes[id] = Double.NaN;
+            --mSize;
+        }
+    }
+
+    /**
+     * Stops tracking every region.
+     */
+    public void clear() {
+        mHeap.clear();
+        Arrays.fill(mBaseTimes, Double.NaN);
+        mSize = 0;
+    }
+
+    /**
+     * @param time a simulated time
+     * @return whether some region has an event at or before the time
+     */
+    public boolean hasDue(final double time) {
+        return !mHeap.isEmpty() && mHeap.peekKey() <= time;
+    }
+
+    /**
+     * @return the time of the next event (the queue must have one due)
+     */
+    public double peekTime() {
+        return mHeap.peekKey();
+    }
+
+    /**
+     * Removes the next event from the queue.
+     * @return the id of its region
+     */
+    public int poll() {
+        return mHeap.poll();
+    }
+
+    /**
+     * The time for one fixed-point coordinate to reach the next cell. Moving up it must
+     * reach the next integer, moving down it must drop just below its current floor.
+     * @param position the coordinate in fixed-point
+     * @param velocity the velocity along the coordinate in fixed-point
+     * @return the time until the floor of the coordinate changes (infinite if never)
+     */
+    private static double timeToCross(final long position, final long velocity) {
+        final long fraction = position & (FixedPoint.ONE - 1);
+
+        if (velocity > 0) return (double) (FixedPoint.ONE - fraction) / velocity;
+        else if (velocity < 0) return (double) (fraction + 1) / -velocity;
+        else return Double.POSITIVE_INFINITY;
+    }
+}
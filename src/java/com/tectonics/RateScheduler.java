@@ -0,0 +1,228 @@
+package com.tectonics;
+
+import java.util.Arrays;
+
+/**
+ * <p>Sorts regions into power-of-two rate classes for multi-rate integration.</p>
+ *
+ * <p>A region in class k takes one step every 2^k ticks, at the end of the ticks whose
+ * number plus one is a multiple of 2^k. The scheduler keeps, by region id, the class and
+ * the simulated time the region's position was last brought up to date at (its base
+ * time), and a bucket of region ids per class so that the regions due on a tick are found
+ * without looking at the others.</p>
+ */
+public class RateScheduler {
+
+    private final int mClassCount;
+
+    /**
+     * The class of each region by id (-1 for regions not tracked)
+     */
+    private int[] mClasses = new int[0];
+
+    /**
+     * The base time of each region by id
+     */
+    private double[] mBaseTimes = new double[0];
+
+    /**
+     * The position of each region in the bucket of its class, by id
+     */
+    private int[] mSlots = new int[0];
+
+    /**
+     * The region ids of each class, the first mBucketSizes[k] of mBuckets[k] are used
+     */
+    private final int[][] mBuckets;
+    private final int[] mBucketSizes;
+
+    private int mSize = 0;
+
+    /**
+     * @param classCount the number of rate classes, the slowest steps every
+     *        2^(classCount - 1) ticks
+     */
+    public RateScheduler(final int classCount) {
+        assert classCount > 0 && classCount < 31;
+
+        mClassCount = classCount;
+        mBuckets = new int[classCount][16];
+        mBucketSizes = new int[classCount];
+    }
+
+    public int getClassCount() {
+        return mClassCount;
+    }
+
+    /**
+     * @return the number of tracked regions
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return whether no region is tracked
+     */
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * @param id a region id
+     * @return whether the region is tracked
+     */
+    public boolean contains(final int id) {
+        return id >= 0 && id < mClasses.length && mClasses[id] != -1;
+    }
+
+    /**
+     * @param id a tracked region id
+     * @return the rate class of the region
+     */
+    public int getRateClass(final int id) {
+        return mClasses[id];
+    }
+
+    /**
+     * @param id a tracked region id
+     * @return the simulated time the region's position was last brought up to date at
+     */
+    public double getBaseTime(final int id) {
+        return mBaseTimes[id];
+    }
+
+    /**
+     * @param id a tracked region id
+     * @param time the simulated time the region's position is now up to date at
+     */
+    public void setBaseTime(final int id, final double time) {
+        assert contains(id);
+        mBaseTimes[id] = time;
+    }
+
+    /**
+     * Starts tracking a region.
+     * @param id the region id
+     * @param rateClass its rate class
+     * @param time the simulated time its position is up to date at
+     */
+    public void add(final int id, final int rateClass, final double time) {
+        assert !contains(id);
+
+        if (id >= mClasses.length) {
+            final int length = mClasses.length;
+            final int capacity = Math.max(2 * length, id + 1);
+
+            mClasses = Arrays.copyOf(mClasses, capacity);
+            mBaseTimes = Arrays.copyOf(mBaseTimes, capacity);
+            mSlots = Arrays.copyOf(mSlots, capacity);
+            Arrays.fill(mClasses, length, capacity, -1);
+        }
+
+        mBaseTimes[id] = time;
+        addToBucket(id, rateClass);
+        ++mSize;
+    }
+
+    /**
+     * Moves a tracked region into another class. Its base time is kept, so it may be moved
+     * on any tick; the next step of the region then covers all the time since.
+     * @param id the region id
+     * @param rateClass its new rate class
+     */
+    public void setRateClass(final int id, final int rateClass) {
+        assert contains(id);
+
+        if (mClasses[id] == rateClass) return;
+
+        removeFromBucket(id);
+        addToBucket(id, rateClass);
+    }
+
+    /**
+     * Stops tracking a region.
+     * @param id the region id
+     */
+    public void remove(final int id) {
+        if (!contains(id)) return;
+
+        removeFromBucket(id);
+        mClasses[id] = -1;
+        --mSize;
+    }
+
+    /**
+     * Stops tracking every region.
+     */
+    public void clear() {
+        Arrays.fill(mClasses, -1);
+        Arrays.fill(mBucketSizes, 0);
+        mSize = 0;
+    }
+
+    /**
+     * @param rateClass a rate class
+     * @param tick a tick number
+     * @return whether the regions of the class take a step at the end of the tick
+     */
+    public boolean isDue(final int rateClass, final long tick) {
+        return ((tick + 1) & ((1L << rateClass) - 1)) == 0;
+    }
+
+    /**
+     * The regions due on a tick. A class is only due when all faster classes are, so the
+     * cost is the number of regions returned plus the number of classes.
+     * @param tick a tick number
+     * @return the ids of the regions that take a step at the end of the tick
+     */
+    public int[] getDue(final long tick) {
+        int count = 0;
+        int classes = 0;
+
+        while (classes < mClassCount && isDue(classes, tick)) {
+            count += mBucketSizes[classes++];
+        }
+
+        final int[] due = new int[count];
+        int offset = 0;
+
+        for (int k = 0; k < classes; ++k) {
+            System.arraycopy(mBuckets[k], 0, due, offset, mBucketSizes[k]);
+            offset += mBucketSizes[k];
+        }
+
+        return due;
+    }
+
+    /**
+     * @return the ids of every tracked region
+     */
+    public int[] getTracked() {
+        return getDue(-1L);
+    }
+
+    private void addToBucket(final int id, final int rateClass) {
+        assert rateClass >= 0 && rateClass < mClassCount;
+
+        if (mBucketSizes[rateClass] == mBuckets[rateClass].length) {
+            mBuckets[rateClass] = Arrays.copyOf(mBuckets[rateClass], 2 * mBucketSizes[rateClass]);
+        }
+
+        mClasses[id] = rateClass;
+        mSlots[id] = mBucketSizes[rateClass];
+        mBuckets[rateClass][mBucketSizes[rateClass]++] = id;
+    }
+
+    /**
+     * Removes a region from its bucket by moving the bucket's last id into its slot.
+     */
+    private void removeFromBucket(final int id) {
+        final int rateClass = mClasses[id];
+        final int[] bucket = mBuckets[rateClass];
+        final int last = bucket[--mBucketSizes[rateClass]];
+
+        bucket[mSlots[id]] = last;
+        mSlots[last] = mSlots[id];
+    }
+}
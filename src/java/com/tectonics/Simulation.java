@@ -5,7 +5,10 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.awt.Point;
 
@@ -13,6 +16,23 @@ import com.tectonics.util.*;
 import com.tectonics.plates.*;
 
 public class Simulation {
+
+    /**
+     * How region velocities are advanced by the spring forces
+     */
+    public static enum Integration {
+        /**
+         * Symplectic Euler: the force kicks the velocity, then the position moves with the
+         * new velocity. Stable only for timesteps below SpringNetwork.getStableTimeStep.
+         */
+        EXPLICIT,
+
+        /**
+         * Backward Euler solved with conjugate gradients, stable for large timesteps
+         */
+        IMPLICIT
+    }
+
     public static final Console console = new Console();
 
     public static final Length RUPTURE_THICKNESS = Length.fromKilometers(2.0f);
@@ -21,24 +41,167 @@ public class Simulation {
     public static final float MAX_INIT_VELOCITY = 0.029f;
     public static final float MANTLE_DENSITY = 4500f;
     public static final float DELTA_T = 0.1f;
+    public static final int IMPLICIT_MAX_ITERATIONS = 100;
+    public static final float IMPLICIT_TOLERANCE = 1e-5f;
+
+    /**
+     * The fraction of the stable explicit timestep the adaptive controller uses
+     */
+    public static final float STABILITY_SAFETY = 0.5f;
+
+    /**
+     * In hierarchical mode, how far (in cells) regions may stray from the rigid motion of
+     * their plate before the plate's deformation is resolved; plates move as rigid bodies
+     * every tick
+     */
+    public static final float DEFORMATION_TOLERANCE = 0.05f;
+
+    /**
+     * In multi-rate mode, the slowest rate class steps every 2^(RATE_CLASS_COUNT - 1) ticks
+     */
+    public static final int RATE_CLASS_COUNT = 6;
+
+    /**
+     * In multi-rate mode, how far (in cells) a region may move in one step of its class
+     */
+    public static final float RATE_DISTANCE = 0.5f;
+
+    /**
+     * In multi-rate mode, how far (in cells) the change of a region's velocity over one
+     * step of its class may move it
+     */
+    public static final float RATE_DRIFT = 0.05f;
+
+    /**
+     * In kinetic mode, how far (in cells) a region may drift for lack of the velocity
+     * changes not yet applied to it
+     */
+    public static final float KINETIC_DRIFT = 0.05f;
+
+    /**
+     * In kinetic mode, the most ticks the velocity changes of a region may wait for
+     */
+    public static final int KINETIC_MAX_REFRESH = 32;
 
     private final WrappedBox mWrappedBox;
     
     private final List<Plate> mPlates;
 
+    /**
+     * Every region ever registered, indexed by its id. Removed regions leave a null
+     * behind so that ids stay stable.
+     */
+    private final List<Region> mRegionsById = new ArrayList<>();
+
+    /**
+     * The cached, unmodifiable list of live regions (or null when it must be rebuilt)
+     */
+    private List<Region> mRegionsView = null;
+
+    private final WorldRaster mRaster;
+
     private final Graph<Region, Pair<Boolean, Float>> mNeighborGraph;
 
+    /**
+     * The neighbor graph as flat columns for the spring forces, rebuilt when the graph changes
+     */
+    private final SpringNetwork mSpringNetwork;
+
+    private Integration mIntegration = Integration.EXPLICIT;
+
+    /**
+     * The timestep of each tick
+     */
+    private float mTimeStep = DELTA_T;
+
+    /**
+     * Whether each tick picks its own timestep, at most mTimeStep
+     */
+    private boolean mAdaptive = false;
+
+    /**
+     * Whether plates are advanced as rigid bodies every tick and deformed once their
+     * regions stray DEFORMATION_TOLERANCE from it, see
+     * SpringNetwork.computeHierarchicalForces
+     */
+    private boolean mHierarchical = false;
+
+    /**
+     * Whether positions are only brought up to date when regions cross cells or change
+     * velocity, see CrossingQueue
+     */
+    private boolean mKinetic = false;
+
+    private final CrossingQueue mCrossings = new CrossingQueue();
+
+    /**
+     * The position lag of each spring network row in kinetic mode, reused every tick
+     */
+    private float[] mPositionLags = new float[0];
+
+    /**
+     * Whether explicit integration steps slow regions less often, see RateScheduler
+     */
+    private boolean mMultiRate = false;
+
+    private final RateScheduler mRates = new RateScheduler(RATE_CLASS_COUNT);
+
+    /**
+     * The number of ticks so far
+     */
+    private long mTickCount = 0L;
+
+    /**
+     * The timestep used by the last tick
+     */
+    private float mLastTimeStep = 0f;
+
+    /**
+     * The total simulated time
+     */
+    private double mSimulatedTime = 0.0;
+
+    /**
+     * The handle of each region's node in the neighbor graph, indexed by region id (-1
+     * for removed regions)
+     */
+    private int[] mNodeHandles = new int[0];
+
+    /**
+     * The ids of the regions that changed shape, chunks or integer position during the
+     * last tick.
+     */
+    private final BitSet mDirtyRegions = new BitSet();
+
+    /**
+     * The region velocities the boundary raster was last classified with, indexed by id.
+     */
+    private float[] mClassifiedVelocityX = new float[0];
+    private float[] mClassifiedVelocityY = new float[0];
+
     public Simulation(final int width, final int height, final int initialPlateCount) {
         mWrappedBox = new WrappedBox(width, height);
+        mRaster = new WorldRaster(mWrappedBox);
+        mSpringNetwork = new SpringNetwork(mWrappedBox, SPRING_CONSTANT);
         
         console.startProgressBar("Splitting Area", 6);
         mPlates = splitArea(initialPlateCount);
         console.completeProgressBar();
 
+        for (int plateId = 0; plateId < mPlates.size(); ++plateId) {
+            for (final Region region : mPlates.get(plateId).getRegions()) {
+                register(region, plateId);
+            }
+        }
+
         final List<Region> regions = getRegions();
 
         console.startProgressBar("Building Neighbor Graph", 10);
-        mNeighborGraph = new Graph<>(regions);
+        mNeighborGraph = new Graph<>();
+
+        for (final Region region : regions) {
+            setNodeHandle(region.getId(), mNeighborGraph.addNode(region));
+        }
 
         for (int i = 1; i < regions.size(); ++i) {
             final Region r1 = regions.get(i);
@@ -52,119 +215,771 @@ public class Simulation {
                     final Vec c1 = r1.getCentroid();
                     final Vec c2 = r2.getCentroid();
 
-                    final boolean onSamePlate = getPlateFromRegion(r1) == getPlateFromRegion(r2);
+                    final boolean onSamePlate = r1.getPlateId() == r2.getPlateId();
 
-                    mNeighborGraph.addEdge(j, i, new Pair<>(onSamePlate, mWrappedBox.distance(c1, c2)));
+                    mNeighborGraph.addEdge(
+                        getNodeHandle(r2), getNodeHandle(r1),
+                        new Pair<>(onSamePlate, mWrappedBox.distance(c1, c2))
+                    );
                 }
             }
         }
         console.completeProgressBar();
         
+        mDirtyRegions.set(0, mRegionsById.size());
         reEvaluateHeightMaps();
 
+        mRaster.rebuild(mRegionsById);
+        classifyBoundaries();
+
+        regions.forEach(Region::clearDirty);
+
         System.out.println("Finished creating sim");
     }
 
     public void update() {
+        mDirtyRegions.clear();
+
         // Update positions and velocities
-        final List<Pair<Region, Point>> regionMovements = new ArrayList<>();
+        mSpringNetwork.sync(getRegions(), mNeighborGraph);
 
-        for (final Region region : getRegions()) {
-            final int index0 = mNeighborGraph.getIndex(region);
-            final Vec c0 = region.getCentroid();
-            final List<Integer> neighbors = mNeighborGraph.getNeighbors(index0);
+        // The cells uncovered by moving regions
+        final List<Point> exposed = new ArrayList<>();
 
-            Vec acceleration = Vec.ZERO;
+        final boolean multiRate = mMultiRate && mIntegration == Integration.EXPLICIT;
+        final boolean hierarchical = mHierarchical && mIntegration == Integration.EXPLICIT && !multiRate;
+        final float dt;
 
-            for (final Integer index1 : neighbors) {
-                final Region neighbor = mNeighborGraph.getNode(index1).get();
-                final Vec c1 = neighbor.getCentroid();
-                final Pair<Boolean, Float> value = mNeighborGraph.getEdgeValue(index0, index1).get();
-                final float base = value.second;
-                final float actual = mWrappedBox.distance(c0, c1);
-                final float delta = value.first ? actual - base : Math.max(0, actual - base);
+        if (!hierarchical && mSpringNetwork.hasDeferredImpulses()) applyDeferredImpulses(exposed);
 
-                final Vec c10 = mWrappedBox.getNonWrappedDuplicates(c1).stream().min((a, b) -> {
-                    return Float.compare(Vec.sum(a, c0.negate()).len(), Vec.sum(b, c0.negate()).len());
-                }).get();
+        if (!multiRate && !mRates.isEmpty()) catchUpRates(exposed);
 
-                final Vec a = Vec.scale(Vec.sum(c10, c0.negate()).normal(), SPRING_CONSTANT * delta);
+        if (multiRate) {
+            dt = mTimeStep;
+            advanceMultiRate(dt, exposed);
+        }
+        else {
+            if (mKinetic) {
+                mSpringNetwork.gather(getPositionLags());
+            }
+            else {
+                mSpringNetwork.gather();
+            }
 
-                acceleration = Vec.sum(acceleration, a);
+            if (hierarchical) {
+                // The deformation impulses depend on the timestep, so it is picked first
+                dt = chooseTimeStep();
+                mSpringNetwork.computeHierarchicalForces(dt, DEFORMATION_TOLERANCE, STABILITY_SAFETY);
+            }
+            else {
+                mSpringNetwork.computeForces();
+                dt = chooseTimeStep();
             }
 
-            final Vec position = region.getPosition();
-            region.setPosition(mWrappedBox.wrap(Vec.sum(position, Vec.scale(region.getVelocity(), DELTA_T))));
-            region.setVelocity(Vec.sum(region.getVelocity(), Vec.scale(acceleration, DELTA_T)));
-            
-            final Point oldPosition = position.truncate();
-            final Point newPosition = region.getPosition().truncate();
+            if (mIntegration == Integration.IMPLICIT) {
+                mSpringNetwork.solveImplicit(dt, IMPLICIT_MAX_ITERATIONS, IMPLICIT_TOLERANCE);
+            }
 
-            if (!oldPosition.equals(newPosition)) {
-                regionMovements.add(new Pair<>(region, Util.subPoints(newPosition, oldPosition)));
+            if (mKinetic) {
+                advanceKinetic(dt, exposed);
+            }
+            else {
+                for (int i = 0; i < mSpringNetwork.getRegionCount(); ++i) {
+                    advance(i, dt, exposed);
+                }
             }
         }
 
+        mLastTimeStep = dt;
+        mSimulatedTime += dt;
+        ++mTickCount;
+
         // TODO: Update neighbor graph
 
         // Handle Rift Zones
-        for (final Pair<Region, Point> movement : regionMovements) {
-            final Region movedRegion = movement.first;
-            final List<Point> shadow = movedRegion.getGlobalShadow(movement.second);
-            final List<Region> neighbors = getNeighboringRegions(movedRegion);
+        updateRaster();
+
+        // Fill empty points below the rupture thickness
+        if (!exposed.isEmpty()) {
+            TerrainGeneration.fillEmptyPoints(exposed, mRaster, mRegionsById);
+            updateRaster();
+        }
+
+        // Handle Convergent Zones
+        // TODO: Subduct, thrust or suture the regions along the points from getOverlaps()
+
+        // Recompute Height Maps
+        reEvaluateHeightMaps();
+
+        classifyBoundaries();
+    }
+
+    /**
+     * Picks the timestep of a tick. Fixed mode always uses mTimeStep. Adaptive mode caps
+     * it by the stability limit of the springs when integrating explicitly; regions that
+     * would still cross more than one cell are sub-stepped by advance. In hierarchical
+     * mode the limit comes from the spring weights of the previous tick; since deferred
+     * deformation is applied as one explicit step, a timestep at the limit leaves
+     * almost nothing to defer.
+     * @return the timestep of this tick
+     */
+    private float chooseTimeStep() {
+        if (!mAdaptive || mIntegration == Integration.IMPLICIT) return mTimeStep;
+
+        final float stable = STABILITY_SAFETY * mSpringNetwork.getStableTimeStep();
+
+        return Math.min(mTimeStep, stable);
+    }
+
+    /**
+     * Adds the deformation impulses hierarchical mode deferred to the region velocities,
+     * on a tick that does not advance in hierarchical mode.
+     * @param exposed collects the global points uncovered by moving regions
+     */
+    private void applyDeferredImpulses(final List<Point> exposed) {
+        for (int i = 0; i < mSpringNetwork.getRegionCount(); ++i) {
+            final Region region = mSpringNetwork.getRegion(i);
+            final long vx = region.getFixedVelocityX() + FixedPoint.fromFloat(mSpringNetwork.getDeferredImpulseX(i));
+            final long vy = region.getFixedVelocityY() + FixedPoint.fromFloat(mSpringNetwork.getDeferredImpulseY(i));
+
+            if (mCrossings.contains(region.getId())) {
+                materialize(region, mSimulatedTime, exposed);
+                region.setFixedVelocity(vx, vy);
+                mCrossings.schedule(region, mSimulatedTime, getRefreshTime(i, mSimulatedTime));
+            }
+            else {
+                region.setFixedVelocity(vx, vy);
+            }
+        }
+
+        mSpringNetwork.clearDeferredImpulses();
+    }
+
+    /**
+     * Advances one region of the spring network by dt. In adaptive mode a region that
+     * would move more than one cell is split into equal sub-steps that each move at most
+     * one cell, so the swept area of every move is exact. Every sub-step kicks with the
+     * same force, the one computed at the start of the tick; only the moves are
+     * refined, the force is not evaluated again.
+     * @param i the row index of the region in the spring network
+     * @param dt the timestep
+     * @param exposed collects the global points uncovered by the region
+     */
+    private void advance(final int i, final float dt, final List<Point> exposed) {
+        final Region region = mSpringNetwork.getRegion(i);
+        final float fx = mSpringNetwork.getForceX(i);
+        final float fy = mSpringNetwork.getForceY(i);
+
+        if (mIntegration == Integration.IMPLICIT) {
+            // Backward Euler moves with the new velocity
+            region.setFixedVelocity(
+                FixedPoint.fromFloat(mSpringNetwork.getNextVelocityX(i)),
+                FixedPoint.fromFloat(mSpringNetwork.getNextVelocityY(i)));
+        }
+
+        int substeps = 1;
+
+        if (mAdaptive) {
+            // A bound on the speed over the whole step
+            final float speed = region.getVelocity().len()
+                + (mIntegration == Integration.EXPLICIT ? (float) Math.hypot(fx, fy) * dt : 0f);
+
+            substeps = Math.max(1, (int) Math.ceil(speed * dt));
+        }
+
+        final float h = dt / substeps;
+
+        for (int step = 0; step < substeps; ++step) {
+            // Positions and velocities are integrated in fixed-point so they stay exact
+            final Point oldPosition = region.getCell();
+
+            // Symplectic Euler kicks the velocity first and moves with the new one
+            if (mIntegration == Integration.EXPLICIT) {
+                region.setFixedVelocity(
+                    region.getFixedVelocityX() + FixedPoint.fromFloat(fx * h),
+                    region.getFixedVelocityY() + FixedPoint.fromFloat(fy * h));
+            }
+
+            region.setFixedPosition(
+                FixedPoint.wrap(
+                    region.getFixedPositionX() + FixedPoint.scale(region.getFixedVelocityX(), h),
+                    mWrappedBox.getWidth()),
+                FixedPoint.wrap(
+                    region.getFixedPositionY() + FixedPoint.scale(region.getFixedVelocityY(), h),
+                    mWrappedBox.getHeight()));
+
+            final Point newPosition = region.getCell();
+
+            if (!oldPosition.equals(newPosition)) {
+                final Point displacement = mWrappedBox.displacement(oldPosition, newPosition);
+                exposed.addAll(region.getGlobalSweptArea(displacement).first);
+            }
+        }
+    }
+
+    /**
+     * Advances the regions due on this tick in multi-rate mode. A due region steps over
+     * all the time since its position was last brought up to date, with the force at the
+     * start of this tick. The centroids of the regions it is connected to are moved along
+     * their velocities to the same time, so forces between rate classes see interpolated
+     * positions. Afterwards each due region is put into the slowest class that keeps its
+     * step stable and short enough for its velocity and acceleration, at most one class
+     * slower than any of its neighbors. Regions of faster neighbors are woken up the same
+     * way, so the cost of a tick follows the number of regions that take a step.
+     * @param dt the timestep of the fastest class
+     * @param exposed collects the global points uncovered by moving regions
+     */
+    private void advanceMultiRate(final float dt, final List<Point> exposed) {
+        final double now = mSimulatedTime;
+        final double end = now + dt;
 
-            // Fill empty points below the rupture thickness
-            for (final Point shadowPoint : shadow) {
-                TerrainGeneration.fillEmptyPoint(shadowPoint, mWrappedBox, getNeighboringRegions(shadowPoint));
+        // Regions that joined the network, or every region on entering the mode
+        if (mRates.size() != mSpringNetwork.getRegionCount()) {
+            for (int i = 0; i < mSpringNetwork.getRegionCount(); ++i) {
+                final int id = mSpringNetwork.getRegion(i).getId();
+
+                if (!mRates.contains(id)) mRates.add(id, 0, now);
+            }
+        }
+
+        final int[] rows = mRates.getDue(mTickCount);
+
+        for (int r = 0; r < rows.length; ++r) {
+            rows[r] = mSpringNetwork.indexOf(rows[r]);
+        }
+
+        for (final int i : rows) {
+            gatherLagged(i, now);
+
+            for (int k = 0; k < mSpringNetwork.getDegree(i); ++k) {
+                gatherLagged(mSpringNetwork.getNeighborRow(i, k), now);
             }
+        }
+
+        mSpringNetwork.computeRowForces(rows);
+
+        for (final int i : rows) {
+            final int id = mSpringNetwork.getRegion(i).getId();
+
+            advance(i, (float) (end - mRates.getBaseTime(id)), exposed);
+            mRates.setBaseTime(id, end);
+        }
+
+        for (final int i : rows) {
+            final int rateClass = chooseRateClass(i, dt);
+
+            mRates.setRateClass(mSpringNetwork.getRegion(i).getId(), rateClass);
+
+            for (int k = 0; k < mSpringNetwork.getDegree(i); ++k) {
+                final int neighbor = mSpringNetwork.getRegion(mSpringNetwork.getNeighborRow(i, k)).getId();
+
+                if (mRates.getRateClass(neighbor) > rateClass + 1) {
+                    mRates.setRateClass(neighbor, rateClass + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gathers one row of the spring network, extrapolating its centroid from the base
+     * time of its region to a time.
+     * @param i the row index
+     * @param time the simulated time
+     */
+    private void gatherLagged(final int i, final double time) {
+        final int id = mSpringNetwork.getRegion(i).getId();
+        mSpringNetwork.gatherRow(i, (float) (time - mRates.getBaseTime(id)));
+    }
+
+    /**
+     * Picks the rate class of a region that just took a step, from the forces computed
+     * for it.
+     * @param i the row index of the region
+     * @param dt the timestep of the fastest class
+     * @return the rate class
+     */
+    private int chooseRateClass(final int i, final float dt) {
+        final Region region = mSpringNetwork.getRegion(i);
+        final float speed = region.getVelocity().len();
+        final float acceleration = (float) Math.hypot(mSpringNetwork.getForceX(i), mSpringNetwork.getForceY(i));
+
+        float step = STABILITY_SAFETY * mSpringNetwork.getStableTimeStep(i);
+
+        if (speed > 0f) step = Math.min(step, RATE_DISTANCE / speed);
+        if (acceleration > 0f) step = Math.min(step, (float) Math.sqrt(2f * RATE_DRIFT / acceleration));
+
+        int rateClass = 0;
+
+        while (rateClass + 1 < RATE_CLASS_COUNT && dt * (1 << (rateClass + 1)) <= step) {
+            ++rateClass;
+        }
+
+        // Stay at most one class slower than every neighbor
+        for (int k = 0; k < mSpringNetwork.getDegree(i); ++k) {
+            final int neighbor = mSpringNetwork.getRegion(mSpringNetwork.getNeighborRow(i, k)).getId();
+            rateClass = Math.min(rateClass, mRates.getRateClass(neighbor) + 1);
+        }
 
-            final List<Pair<Region, List<Point>>> subdividedShadows = new ArrayList<>();
+        return rateClass;
+    }
+
+    /**
+     * Brings every region tracked by the rate scheduler up to the current simulated time
+     * along its velocity and stops tracking them.
+     * @param exposed collects the global points uncovered by moving regions
+     */
+    private void catchUpRates(final List<Point> exposed) {
+        for (final int id : mRates.getTracked()) {
+            final Region region = mRegionsById.get(id);
+            final double elapsed = mSimulatedTime - mRates.getBaseTime(id);
+
+            if (region != null && elapsed > 0.0) moveAlongVelocity(region, elapsed, exposed);
+        }
+
+        mRates.clear();
+    }
+
+    /**
+     * Advances every region by dt in kinetic mode, with the same integration as advance.
+     * The velocity change of the step goes into the spring network's kicks (see
+     * SpringNetwork.accumulateKicks) rather than into the regions. A region is only
+     * visited when the crossing queue has an event for it in the step: when it crosses a
+     * cell, which also makes every move exactly one cell, or at its refresh time (see
+     * getRefreshTime). Its position is then brought up to date, its kick is applied and
+     * its next event is queued. Apart from the force computation, a step costs time in
+     * proportion to the regions visited. A kick takes effect at the next event of its
+     * region, so until then the region may trail its integrated position by up to the
+     * drift the refresh time allows.
+     * @param dt the timestep
+     * @param exposed collects the global points uncovered by moving regions
+     */
+    private void advanceKinetic(final float dt, final List<Point> exposed) {
+        final double now = mSimulatedTime;
+        final double end = now + dt;
 
-            for (final Region neighbor : neighbors) {
-                final List<Point> subShadow = new ArrayList<>();
+        // Regions that joined the network since the last step
+        if (mCrossings.size() != mSpringNetwork.getRegionCount()) {
+            for (int i = 0; i < mSpringNetwork.getRegionCount(); ++i) {
+                final Region region = mSpringNetwork.getRegion(i);
 
-                for (final Point shadowPoint : shadow) {
-                    if (mWrappedBox.contains(neighbor.getNeighbors(), shadowPoint)) {
-                        subShadow.add(shadowPoint);
-                    }
+                if (!mCrossings.contains(region.getId())) {
+                    mCrossings.schedule(region, now, getRefreshTime(i, now));
                 }
+            }
+        }
+
+        mSpringNetwork.accumulateKicks(dt, mIntegration == Integration.IMPLICIT);
+
+        while (mCrossings.hasDue(end)) {
+            final double time = mCrossings.peekTime();
+            final Region region = mRegionsById.get(mCrossings.poll());
+            final int i = mSpringNetwork.indexOf(region.getId());
+
+            materialize(region, time, exposed);
+            applyKick(region, i);
+            mCrossings.schedule(region, time, Math.max(getRefreshTime(i, time), Math.nextUp(end)));
+        }
+    }
+
+    /**
+     * Applies the kick the spring network holds for a region to its velocity.
+     * @param region the region
+     * @param i its row index
+     */
+    private void applyKick(final Region region, final int i) {
+        region.setFixedVelocity(
+            region.getFixedVelocityX() + FixedPoint.fromFloat(mSpringNetwork.getKickX(i)),
+            region.getFixedVelocityY() + FixedPoint.fromFloat(mSpringNetwork.getKickY(i)));
+        mSpringNetwork.clearKick(i);
+    }
+
+    /**
+     * Picks when a region's kicks must be applied by, even if it does not cross a cell:
+     * when the force on it, held for that long, would have moved it KINETIC_DRIFT cells,
+     * and at most KINETIC_MAX_REFRESH ticks from now.
+     * @param i the row index of the region
+     * @param time the simulated time the region is visited at
+     * @return the refresh time
+     */
+    private double getRefreshTime(final int i, final double time) {
+        final float acceleration = (float) Math.hypot(mSpringNetwork.getForceX(i), mSpringNetwork.getForceY(i));
+        double delay = (double) KINETIC_MAX_REFRESH * mTimeStep;
+
+        if (acceleration > 0f) delay = Math.min(delay, Math.sqrt(2f * KINETIC_DRIFT / acceleration));
+
+        return time + delay;
+    }
+
+    /**
+     * Brings a region's position up to a time along its current velocity. The caller must
+     * schedule the region again at that time.
+     * @param region a region tracked by the crossing queue
+     * @param time the simulated time
+     * @param exposed collects the global points uncovered if the region changes cell
+     */
+    private void materialize(final Region region, final double time, final List<Point> exposed) {
+        final double elapsed = time - mCrossings.getBaseTime(region.getId());
+
+        if (elapsed > 0.0) moveAlongVelocity(region, elapsed, exposed);
+    }
 
-                subdividedShadows.add(new Pair<>(neighbor, subShadow));
+    /**
+     * Moves a region along its current velocity in one go.
+     * @param region the region
+     * @param elapsed the time to move it for
+     * @param exposed collects the global points uncovered if the region changes cell
+     */
+    private void moveAlongVelocity(final Region region, final double elapsed, final List<Point> exposed) {
+        final Point oldPosition = region.getCell();
+
+        region.setFixedPosition(
+            FixedPoint.wrap(
+                region.getFixedPositionX() + Math.round(region.getFixedVelocityX() * elapsed),
+                mWrappedBox.getWidth()),
+            FixedPoint.wrap(
+                region.getFixedPositionY() + Math.round(region.getFixedVelocityY() * elapsed),
+                mWrappedBox.getHeight()));
+
+        final Point newPosition = region.getCell();
+
+        if (!oldPosition.equals(newPosition)) {
+            final Point displacement = mWrappedBox.displacement(oldPosition, newPosition);
+            exposed.addAll(region.getGlobalSweptArea(displacement).first);
+        }
+    }
+
+    /**
+     * @return how far behind the current simulated time the position of each spring
+     *         network row is, in a buffer reused by the next call
+     */
+    private float[] getPositionLags() {
+        final int count = mSpringNetwork.getRegionCount();
+
+        if (mPositionLags.length < count) mPositionLags = new float[count];
+
+        for (int i = 0; i < count; ++i) {
+            final int id = mSpringNetwork.getRegion(i).getId();
+
+            mPositionLags[i] = mCrossings.contains(id) ? (float) (mSimulatedTime - mCrossings.getBaseTime(id)) : 0f;
+        }
+
+        return mPositionLags;
+    }
+
+    /**
+     * Brings every position up to the current simulated time and applies the kicks
+     * still held for the regions. Crossings up to now were all handled, so this never
+     * changes a region's cell.
+     */
+    private void materializeAll() {
+        final List<Point> exposed = new ArrayList<>();
+
+        for (final Region region : getRegions()) {
+            if (mCrossings.contains(region.getId())) {
+                materialize(region, mSimulatedTime, exposed);
             }
 
-            // TODO: Handle subdivided shadows
+            final int i = mSpringNetwork.indexOf(region.getId());
+
+            if (i != -1) applyKick(region, i);
         }
 
-        // Recompute Height Maps
-        reEvaluateHeightMaps();
+        assert exposed.isEmpty();
+        mCrossings.clear();
     }
 
     public WrappedBox getWrappedBox() {
         return mWrappedBox;
     }
 
+    public Integration getIntegration() {
+        return mIntegration;
+    }
+
+    /**
+     * @param integration how region velocities are advanced from now on
+     */
+    public void setIntegration(final Integration integration) {
+        mIntegration = integration;
+    }
+
+    public float getTimeStep() {
+        return mTimeStep;
+    }
+
+    /**
+     * @return the timestep used by the last tick
+     */
+    public float getLastTimeStep() {
+        return mLastTimeStep;
+    }
+
+    /**
+     * @return the total simulated time so far
+     */
+    public double getSimulatedTime() {
+        return mSimulatedTime;
+    }
+
+    /**
+     * @return the number of ticks so far
+     */
+    public long getTickCount() {
+        return mTickCount;
+    }
+
+    /**
+     * @return the spring network the region velocities are advanced with
+     */
+    public SpringNetwork getSpringNetwork() {
+        return mSpringNetwork;
+    }
+
+    public boolean isHierarchical() {
+        return mHierarchical;
+    }
+
+    /**
+     * In hierarchical mode each plate is advanced as a rigid body, translating and
+     * rotating, every tick, and the deformation of its regions relative to it is resolved
+     * once they may have strayed DEFORMATION_TOLERANCE cells from it, or before the
+     * deferred deformation could no longer be applied stably in one step, see
+     * SpringNetwork.computeHierarchicalForces. It applies to explicit
+     * integration only; the implicit solve always couples every spring. Deformation
+     * deferred when leaving the mode is applied on the next tick.
+     * @param hierarchical whether to advance plates on two levels
+     */
+    public void setHierarchical(final boolean hierarchical) {
+        mHierarchical = hierarchical;
+    }
+
+    public boolean isKinetic() {
+        return mKinetic;
+    }
+
+    /**
+     * In kinetic mode positions are only brought up to date when regions cross cells or
+     * their held velocity changes are applied, see advanceKinetic. Cells always follow
+     * the velocities applied; between events the fractional positions (and so the
+     * centroids) seen outside of the simulation may lag. Adaptive sub-stepping is not
+     * needed in this mode, since every crossing is handled on its own.
+     * @param kinetic whether to advance regions by predicted crossings
+     */
+    public void setKinetic(final boolean kinetic) {
+        if (mKinetic && !kinetic) materializeAll();
+        if (kinetic) mMultiRate = false;
+        mKinetic = kinetic;
+    }
+
+    public boolean isMultiRate() {
+        return mMultiRate;
+    }
+
+    /**
+     * In multi-rate mode explicit integration only steps each region as often as its
+     * velocity, acceleration and springs need, in power-of-two multiples of the timestep.
+     * Positions seen outside of the simulation may lag by up to the step of their region's
+     * class; they are brought up to date on the first tick after leaving the mode.
+     * Multi-rate mode replaces kinetic mode and ignores the hierarchical one; the fastest
+     * class always steps by the timestep set by setTimeStep. It has no effect with
+     * implicit integration.
+     * @param multiRate whether regions are sorted into rate classes
+     */
+    public void setMultiRate(final boolean multiRate) {
+        if (multiRate) setKinetic(false);
+        mMultiRate = multiRate;
+    }
+
+    public boolean isAdaptive() {
+        return mAdaptive;
+    }
+
+    /**
+     * In adaptive mode the timestep set by setTimeStep is the largest step a tick takes.
+     * @param adaptive whether each tick picks its own timestep
+     */
+    public void setAdaptive(final boolean adaptive) {
+        mAdaptive = adaptive;
+    }
+
+    /**
+     * Note: Only the implicit integration stays stable for timesteps much larger than
+     * DELTA_T.
+     * @param timeStep the timestep of each tick from now on
+     */
+    public void setTimeStep(final float timeStep) {
+        assert timeStep > 0f;
+        mTimeStep = timeStep;
+    }
+
+    public WorldRaster getRaster() {
+        return mRaster;
+    }
+
+    /**
+     * Extracts the rock along a line through the world, see CrossSection.extract.
+     * @param from the cell the line starts at
+     * @param to the cell the line ends at
+     * @return the cross section
+     */
+    public CrossSection getCrossSection(final Point from, final Point to) {
+        return CrossSection.extract(mRaster, mRegionsById, from, to);
+    }
+
+    /**
+     * Gathers what is known about a cell, from the world raster and the chunk of the
+     * region owning it, in constant time (plus the number of layers).
+     * @param point a point in global coordinates
+     * @return the cell's information as of the last update
+     */
+    public CellInfo inspect(final Point point) {
+        final Point cell = mWrappedBox.wrap(point);
+        final CrossSection column = getCrossSection(cell, cell);
+        final Optional<Region> region = getRegionFromPoint(cell);
+
+        if (region.isEmpty()) return new CellInfo(cell, column);
+
+        final Optional<Point> global = mWrappedBox.getUnwrapped(region.get().getBoundingBox(), cell);
+        final float depth = global.isPresent() ? region.get().getDepthAt(region.get().toLocal(global.get())) : 0f;
+
+        return new CellInfo(
+            cell,
+            region.get().getId(),
+            region.get().getPlateId(),
+            mRaster.getElevation(cell),
+            depth,
+            mRaster.getBoundaryType(cell),
+            column);
+    }
+
+    /**
+     * @return the points claimed by more than one region this tick, grouped by the pair of
+     *         claiming region ids
+     */
+    public Map<Pair<Integer, Integer>, List<Point>> getOverlaps() {
+        return mRaster.getOverlaps();
+    }
+
     public Graph<Region, Pair<Boolean, Float>> getGraph() {
         return mNeighborGraph;
     }
+
+    /**
+     * @param region a live region
+     * @return the handle of the region's node in the neighbor graph
+     */
+    public int getNodeHandle(final Region region) {
+        return mNodeHandles[region.getId()];
+    }
     
     public Plate getPlateFromRegion(final Region region) {
-        for (final Plate plate : mPlates) {
-            if (plate.contains(region)) {
-                return plate;
+        return mPlates.get(region.getPlateId());
+    }
+
+    /**
+     * @return the ids of the regions that changed shape, chunks or integer position during
+     *         the last tick
+     */
+    public BitSet getDirtyRegions() {
+        return (BitSet) mDirtyRegions.clone();
+    }
+
+    /**
+     * @param id the id of the region
+     * @return the region with that id, if it has not been removed
+     */
+    public Optional<Region> getRegion(final int id) {
+        if (id < 0 || id >= mRegionsById.size()) return Optional.empty();
+        return Optional.ofNullable(mRegionsById.get(id));
+    }
+
+    /**
+     * @return all of the regions in the simulation (unmodifiable, cached until regions
+     *         are added or removed)
+     */
+    public List<Region> getRegions() {
+        if (mRegionsView == null) {
+            final List<Region> regions = new ArrayList<>(mRegionsById.size());
+
+            for (final Region region : mRegionsById) {
+                if (region != null) regions.add(region);
             }
+
+            mRegionsView = Collections.unmodifiableList(regions);
         }
-        return null;
+
+        return mRegionsView;
     }
 
     /**
-     * @return all of the regions in the simulation
+     * Adds a region to a plate, giving it a new id and a node in the neighbor graph.
+     * Note: Its neighbor edges still have to be added.
+     * @param region the region to add
+     * @param plate the plate the region belongs to
+     * @return the id of the region
      */
-    public List<Region> getRegions() {
-        final List<Region> regions = new ArrayList<>();
-        for (final Plate plate : mPlates) {
-            regions.addAll(plate.getRegions());
+    public int addRegion(final Region region, final Plate plate) {
+        final int plateId = mPlates.indexOf(plate);
+
+        assert plateId >= 0;
+
+        plate.getRegions().add(region);
+
+        final int id = register(region, plateId);
+        setNodeHandle(id, mNeighborGraph.addNode(region));
+        return id;
+    }
+
+    /**
+     * Removes a region from the simulation, along with its node and edges in the neighbor
+     * graph and its cells in the raster. Its id is not reused. Everything indexed by the
+     * id is cleared in place, so the cost follows the region's size and degree rather
+     * than the number of regions or the size of the world.
+     * @param region the region to remove
+     */
+    public void removeRegion(final Region region) {
+        final int id = region.getId();
+
+        getPlateFromRegion(region).getRegions().remove(region);
+        mCrossings.remove(id);
+        mRates.remove(id);
+        mNeighborGraph.removeNode(getNodeHandle(region));
+        mNodeHandles[id] = -1;
+        mDirtyRegions.clear(id);
+        mRegionsById.set(id, null);
+        mRegionsView = null;
+        mRaster.remove(mRegionsById, region);
+    }
+
+    /**
+     * @param id the id of a region
+     * @param handle the handle of its node in the neighbor graph
+     */
+    private void setNodeHandle(final int id, final int handle) {
+        if (id >= mNodeHandles.length) {
+            final int length = mNodeHandles.length;
+            mNodeHandles = Arrays.copyOf(mNodeHandles, Math.max(2 * length, id + 1));
+            Arrays.fill(mNodeHandles, length, mNodeHandles.length, -1);
         }
-        return regions;
+
+        mNodeHandles[id] = handle;
+    }
+
+    /**
+     * Gives the region the next id and records its plate.
+     * @param region the region to register
+     * @param plateId the id (index) of its plate
+     * @return the id of the region
+     */
+    private int register(final Region region, final int plateId) {
+        final int id = mRegionsById.size();
+
+        region.setId(id);
+        region.setPlateId(plateId);
+        mRegionsById.add(region);
+        mRegionsView = null;
+
+        return id;
     }
 
     /**
@@ -242,7 +1057,7 @@ public class Simulation {
 
     /**
      * @param point the point to retrieve the chunk from
-     * @return potentially the chunk at that position
+     * @return potentially the chunk at that position, of the region owning it
      */
     public Optional<Chunk> getChunk(final Point point) {
         final Optional<Region> maybeRegion = getRegionFromPoint(point);
@@ -260,19 +1075,12 @@ public class Simulation {
     }
 
     /**
+     * Looks the owner of a cell up in the world raster, in constant time.
      * @param point boundary point in global (x,y) coordinate space
-     * @return
+     * @return the region owning the point as of the last update, if any
      */
     public Optional<Region> getRegionFromPoint(final Point point) {
-        for (final Region region : getRegions()) {
-            final Optional<Point> maybePoint = mWrappedBox.getUnwrapped(region.getBoundingBox(), point);
-
-            if (maybePoint.isPresent()) {
-                return Optional.of(region);
-            }
-        }
-
-        return Optional.empty();
+        return getRegion(mRaster.getRegionId(mWrappedBox.wrap(point)));
     }
 
     /**
@@ -334,74 +1142,103 @@ public class Simulation {
     }
 
     /**
+     * Reads the classification of the region's boundary from the boundary raster, which
+     * is recomputed once per tick.
      * @param region the region to examine
      * @return the boundary with extra classifications for boundary type
      */
     public List<Pair<Point, Region.BoundaryType>> getClassifiedBoundary(final Region region) {
         final List<Pair<Point, Region.BoundaryType>> classified = new ArrayList<>();
 
-        final Vec offsetVelocity = region.getVelocity().negate();
-        final Vec offsetPosition = region.getPosition().negate();
-
         for (final Point target : region.getBoundary()) {
-            Region.BoundaryType type = Region.BoundaryType.STATIONARY;
+            final Region.BoundaryType type = mRaster.getBoundaryType(region.toGlobal(target))
+                .orElse(Region.BoundaryType.STATIONARY);
 
-            final List<Point> neighbors = mWrappedBox.get8Neighbors(target)
-                .stream()
-                .filter(neighbor -> !region.contains(neighbor))
-                .collect(Collectors.toList());
-
-            final Vec averagePos = Vec.sum(
-                Vec.extend(target).negate(), 
-                Vec.scale(Vec.extend(neighbors.stream().reduce(new Point(), Util::sumPoints)), 1f / neighbors.size()));
+            classified.add(new Pair<>(target, type));
+        }
 
-            Vec averageVel = Vec.ZERO;
-            int regionCount = 0;
+        return classified;
+    }
 
-            for (final Point neighbor : neighbors) {
-                final Point globalNeighbor = mWrappedBox.wrap(Vec.sum(offsetPosition.negate(), Vec.extend(neighbor)).truncate());
-                final Optional<Region> maybeRegion = getRegionFromPoint(globalNeighbor);
+    /**
+     * Restamps the regions that became dirty since the last call into the raster, and
+     * moves them into the set of regions changed this tick.
+     */
+    private void updateRaster() {
+        final List<Integer> changed = new ArrayList<>();
 
-                if (maybeRegion.isPresent()) {
-                    averageVel = Vec.sum(averageVel, maybeRegion.get().getVelocity());
-                    ++regionCount;
-                }
+        for (final Region region : getRegions()) {
+            if (region.isDirty()) {
+                changed.add(region.getId());
+                mDirtyRegions.set(region.getId());
+                region.clearDirty();
             }
+        }
 
-            averageVel = Vec.scale(averageVel, 1f / (float) regionCount);
+        mRaster.update(mRegionsById, changed);
+    }
 
-            final Vec relativeVelocity = Vec.sum(averageVel, offsetVelocity);
-            final Vec relativePosition = averagePos;
+    /**
+     * Classifies the out of date boundary cells into the boundary raster. Besides the
+     * cells around changed regions, the cells around regions whose velocity drifted by
+     * more than a tenth of the boundary threshold since they were last classified are
+     * reclassified.
+     * Note: The region raster must be up to date.
+     */
+    private void classifyBoundaries() {
+        final float tolerance = 0.1f * BOUNDARY_THRESHOLD;
 
-            final float lateralIndicator = Vec.project(relativeVelocity.independent(), relativePosition);
-            final float axialIndicator = Vec.project(relativeVelocity, relativePosition);
+        if (mClassifiedVelocityX.length != mRegionsById.size()) {
+            final int oldLength = mClassifiedVelocityX.length;
 
-            if (axialIndicator < -BOUNDARY_THRESHOLD) type = Region.BoundaryType.CONVERGENT;
-            else if (axialIndicator > BOUNDARY_THRESHOLD) type = Region.BoundaryType.DIVERGENT;
-            else if (Math.abs(lateralIndicator) > BOUNDARY_THRESHOLD) type = Region.BoundaryType.TRANSFORM;
+            mClassifiedVelocityX = Arrays.copyOf(mClassifiedVelocityX, mRegionsById.size());
+            mClassifiedVelocityY = Arrays.copyOf(mClassifiedVelocityY, mRegionsById.size());
+            Arrays.fill(mClassifiedVelocityX, oldLength, mRegionsById.size(), Float.NaN);
+            Arrays.fill(mClassifiedVelocityY, oldLength, mRegionsById.size(), Float.NaN);
+        }
 
-            classified.add(new Pair<>(target, type));
+        for (final Region region : getRegions()) {
+            final int id = region.getId();
+            final Vec velocity = region.getVelocity();
+
+            if (!(Math.abs(velocity.x - mClassifiedVelocityX[id]) <= tolerance
+                && Math.abs(velocity.y - mClassifiedVelocityY[id]) <= tolerance)) {
+                mClassifiedVelocityX[id] = velocity.x;
+                mClassifiedVelocityY[id] = velocity.y;
+                mRaster.invalidateClassification(id);
+            }
         }
 
-        return classified;
+        mRaster.classifyBoundaries(mClassifiedVelocityX, mClassifiedVelocityY, BOUNDARY_THRESHOLD);
     }
 
     /**
-     * Re-evaluates the height maps
+     * Re-evaluates the height maps of the regions changed this tick, reusing the cached
+     * displacement of the others.
      */
     private void reEvaluateHeightMaps() {
+        final List<Region> regions = getRegions();
+
         float totalDisplacement = 0.0f;
 
-        for (final Region region : getRegions()) {
-            totalDisplacement += region.reEvaluateHeightMap(MANTLE_DENSITY);
+        for (final Region region : regions) {
+            if (mDirtyRegions.get(region.getId())) {
+                totalDisplacement += region.reEvaluateHeightMap(MANTLE_DENSITY);
+            }
+            else {
+                totalDisplacement += region.getDisplacement();
+            }
         }
 
         final float chunkWidth = Chunk.WIDTH_IN_KM.toKilometers();
         final float liftHeight = totalDisplacement / (mWrappedBox.getArea() * chunkWidth * chunkWidth) * 1000f;
 
-        for (final Region region : getRegions()) {
-            region.lift(liftHeight);
+        for (final Region region : regions) {
+            region.setLift(liftHeight);
         }
+
+        mRaster.setLift(liftHeight);
+        mRaster.updateElevations(mRegionsById, mDirtyRegions);
     }
 
     /**
@@ -0,0 +1,1326 @@
+package com.tectonics;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import com.tectonics.util.Graph;
+import com.tectonics.util.Pair;
+import com.tectonics.util.Vec;
+import com.tectonics.util.WrappedBox;
+import com.tectonics.plates.Region;
+
+/**
+ * <p>The region neighbor graph laid out as flat columns for the spring physics.</p>
+ *
+ * <p>Regions get a dense row index and every edge of the neighbor graph becomes a row of
+ * the source, target, rest length and same-plate columns. The table is rebuilt only when
+ * the graph changes. Each tick the centroid and velocity columns are gathered from the
+ * regions and the spring forces are computed in two parallel passes: a loop over the
+ * edge rows evaluates each spring once into the edge columns, then each region sums the
+ * springs in its row of the adjacency (see mRowStart). A tick costs O(edges + regions),
+ * and every float sum is taken in row order whatever the number of threads, so the forces
+ * are the same on every machine.</p>
+ *
+ * <p>For large timesteps the velocities can instead be advanced with backward Euler. The
+ * springs are linearized as a weighted graph Laplacian L, giving the symmetric positive
+ * definite system (I + dt^2 L) v' = v + dt F per axis, which solveImplicit solves with
+ * Jacobi-preconditioned conjugate gradients. Each solve starts from the previous one.
+ * Its dot products are summed over fixed blocks too.</p>
+ *
+ * <p>computeHierarchicalForces solves on two levels. Each plate is one rigid body with
+ * the total mass (regions have unit mass), centroid, momentum, moment of inertia and
+ * angular momentum of its regions, driven by the net force and torque of the springs
+ * between plates, and its linear, angular and centripetal acceleration kicks each of its
+ * regions every tick. The deformation of a plate relative to that motion comes from its
+ * own springs and from how far the force between plates on each region is from its
+ * rigid share. Both have no net force or torque over the plate, so they never change its
+ * motion. They are resolved per plate, as the impulse gathered since the plate was last
+ * resolved, once an upper estimate of how far its regions have strayed from the rigid
+ * motion passes a tolerance, and at the latest before that impulse would be too large to
+ * apply stably in one explicit step. The springs inside plates, most of the table, are
+ * evaluated only when their plate is resolved. A timestep near the stability limit of
+ * the springs leaves little room to defer, so the saving is largest for timesteps well
+ * below it.</p>
+ *
+ * <p>For multi-rate integration gatherRow and computeRowForces work on some rows only,
+ * so that a tick costs time in proportion to the regions that take a step.</p>
+ */
+public class SpringNetwork {
+
+    /**
+     * The number of entries per block of a dot product, fixed so that the sums do not
+     * depend on the number of threads
+     */
+    private static final int ENTRIES_PER_BLOCK = 4096;
+
+    private final WrappedBox mWrappedBox;
+
+    private final float mSpringConstant;
+
+    /**
+     * The regions by row index
+     */
+    private Region[] mRegions = new Region[0];
+
+    private int mRegionCount = 0;
+
+    /**
+     * The row index of each region id (-1 for regions not in the table)
+     */
+    private int[] mIndexById = new int[0];
+
+    /**
+     * The per-region columns
+     */
+    private float[] mCentroidX = new float[0];
+    private float[] mCentroidY = new float[0];
+    private float[] mVelocityX = new float[0];
+    private float[] mVelocityY = new float[0];
+    private float[] mForceX = new float[0];
+    private float[] mForceY = new float[0];
+
+    /**
+     * The per-edge columns
+     */
+    private int[] mSource = new int[0];
+    private int[] mTarget = new int[0];
+    private float[] mRestLength = new float[0];
+    private boolean[] mSamePlate = new boolean[0];
+
+    private int mEdgeCount = 0;
+
+    /**
+     * The edge rows are sorted so that the springs between plates come first, followed
+     * by the springs inside each plate: the rows of plate p are
+     * [mCrossEdgeCount + mPlateEdgeStart[p], mCrossEdgeCount + mPlateEdgeStart[p + 1])
+     */
+    private int mCrossEdgeCount = 0;
+    private int[] mPlateEdgeStart = new int[1];
+
+    /**
+     * The plate of each region and the region rows of each plate: the regions of plate p
+     * are mPlateRegions[mPlateRegionStart[p], mPlateRegionStart[p + 1])
+     */
+    private int[] mPlate = new int[0];
+    private int mPlateCount = 0;
+    private int[] mPlateRegionStart = new int[1];
+    private int[] mPlateRegions = new int[0];
+
+    /**
+     * The rigid body of each plate in the last computeHierarchicalForces: its mass, its
+     * centroid, its velocity and the net force of the springs between plates on it, and
+     * its moment of inertia, angular velocity and the net torque of those springs about
+     * its centroid (counterclockwise in world coordinates, y down)
+     */
+    private float[] mPlateMass = new float[0];
+    private float[] mPlateCentroidX = new float[0];
+    private float[] mPlateCentroidY = new float[0];
+    private float[] mPlateVelocityX = new float[0];
+    private float[] mPlateVelocityY = new float[0];
+    private float[] mPlateForceX = new float[0];
+    private float[] mPlateForceY = new float[0];
+    private float[] mPlateInertia = new float[0];
+    private float[] mPlateAngularVelocity = new float[0];
+    private float[] mPlateTorque = new float[0];
+
+    /**
+     * The time since the deformation of each plate was last resolved
+     */
+    private float[] mPlateElapsed = new float[0];
+
+    /**
+     * How far (in cells) the regions of each plate may have strayed from their rigid
+     * motion since the plate was last resolved, an upper estimate
+     */
+    private float[] mPlateDrift = new float[0];
+
+    /**
+     * The largest force of the springs inside each plate on one of its regions when the
+     * plate was last resolved
+     */
+    private float[] mPlateSpringForce = new float[0];
+
+    /**
+     * The stable explicit timestep of the springs inside each plate alone (see
+     * getStableTimeStep), which bounds how long its deformation can be deferred
+     */
+    private float[] mPlateStableStep = new float[0];
+
+    /**
+     * Whether each plate was resolved by the last computeHierarchicalForces
+     */
+    private boolean[] mPlateResolved = new boolean[0];
+
+    /**
+     * The deformation impulse gathered by each region since its plate was last resolved
+     */
+    private float[] mDeferredX = new float[0];
+    private float[] mDeferredY = new float[0];
+
+    /**
+     * Whether some region has a deferred impulse
+     */
+    private boolean mHasDeferred = false;
+
+    /**
+     * The velocity change kinetic mode has integrated for each region and not yet applied
+     * to it, see accumulateKicks
+     */
+    private float[] mKickX = new float[0];
+    private float[] mKickY = new float[0];
+
+
+    /**
+     * The number of springs evaluated by the last force computation
+     */
+    private int mActiveEdgeCount = 0;
+
+    /**
+     * Scratch forces, interleaved x and y, for the springs inside plates
+     */
+    private float[] mScratchForces = new float[0];
+
+    /**
+     * The stiffness of each spring in the last computeForces, zero for springs between
+     * plates that are compressed (and so exert no force)
+     */
+    private float[] mWeight = new float[0];
+
+    /**
+     * The force on the source of each spring per unit of displacement when it was last
+     * evaluated
+     */
+    private float[] mSpringScale = new float[0];
+
+    /**
+     * The displacement from the source to the target of each spring when it was last
+     * evaluated
+     */
+    private float[] mSpringDx = new float[0];
+    private float[] mSpringDy = new float[0];
+
+    /**
+     * The edge rows touching each region in compressed row form: the entries of region i
+     * are mAdjacentRegion/mAdjacentEdge[mRowStart[i], mRowStart[i + 1]), by increasing
+     * edge row, so the springs between plates come first
+     */
+    private int[] mRowStart = new int[1];
+    private int[] mAdjacentRegion = new int[0];
+    private int[] mAdjacentEdge = new int[0];
+
+    /**
+     * The velocities solved by the last solveImplicit, which also start the next solve
+     */
+    private float[] mNextVelocityX = new float[0];
+    private float[] mNextVelocityY = new float[0];
+
+    /**
+     * Scratch columns for the conjugate gradient solver
+     */
+    private float[] mResidual = new float[0];
+    private float[] mPreconditioned = new float[0];
+    private float[] mDirection = new float[0];
+    private float[] mProduct = new float[0];
+    private float[] mDiagonal = new float[0];
+    private float[] mRightHandSide = new float[0];
+
+    /**
+     * The partial sum of each block of a dot product
+     */
+    private double[] mBlockSums = new double[0];
+
+    /**
+     * Whether the solved velocities can start the next solve
+     */
+    private boolean mWarm = false;
+
+    /**
+     * The modification count of the graph the table was built from
+     */
+    private long mGraphVersion = -1L;
+
+    /**
+     * @param wrappedBox the world the regions live in
+     * @param springConstant the stiffness of every spring
+     */
+    public SpringNetwork(final WrappedBox wrappedBox, final float springConstant) {
+        mWrappedBox = wrappedBox;
+        mSpringConstant = springConstant;
+    }
+
+    /**
+     * @return the number of regions in the table
+     */
+    public int getRegionCount() {
+        return mRegionCount;
+    }
+
+    /**
+     * @return the number of springs in the table
+     */
+    public int getEdgeCount() {
+        return mEdgeCount;
+    }
+
+    /**
+     * @param index a row index
+     * @return the region at that row
+     */
+    public Region getRegion(final int index) {
+        return mRegions[index];
+    }
+
+    /**
+     * @param id a region id
+     * @return the row index of the region, or -1 if it is not in the table
+     */
+    public int indexOf(final int id) {
+        return id >= 0 && id < mIndexById.length ? mIndexById[id] : -1;
+    }
+
+    /**
+     * @param index a row index
+     * @return the x component of the gathered velocity
+     */
+    public float getVelocityX(final int index) {
+        return mVelocityX[index];
+    }
+
+    /**
+     * @param index a row index
+     * @return the y component of the gathered velocity
+     */
+    public float getVelocityY(final int index) {
+        return mVelocityY[index];
+    }
+
+    /**
+     * @param index a row index
+     * @return the x component of the velocity solved by the last solveImplicit
+     */
+    public float getNextVelocityX(final int index) {
+        return mNextVelocityX[index];
+    }
+
+    /**
+     * @param index a row index
+     * @return the y component of the velocity solved by the last solveImplicit
+     */
+    public float getNextVelocityY(final int index) {
+        return mNextVelocityY[index];
+    }
+
+    /**
+     * @param index a row index
+     * @return the x component of the spring force accumulated by the last computeForces
+     */
+    public float getForceX(final int index) {
+        return mForceX[index];
+    }
+
+    /**
+     * @param index a row index
+     * @return the y component of the spring force accumulated by the last computeForces
+     */
+    public float getForceY(final int index) {
+        return mForceY[index];
+    }
+
+    /**
+     * Rebuilds the table if the graph changed since it was last built.
+     * @param regions the live regions
+     * @param graph the neighbor graph, whose edges hold (same plate, rest length)
+     * @return whether the table was rebuilt
+     */
+    public boolean sync(final List<Region> regions, final Graph<Region, Pair<Boolean, Float>> graph) {
+        if (graph.getModificationCount() == mGraphVersion && regions.size() == mRegionCount) {
+            return false;
+        }
+
+        rebuild(regions, graph);
+        return true;
+    }
+
+    /**
+     * Rebuilds the region rows and the edge rows.
+     * @param regions the live regions
+     * @param graph the neighbor graph, whose edges hold (same plate, rest length)
+     */
+    public void rebuild(final List<Region> regions, final Graph<Region, Pair<Boolean, Float>> graph) {
+        final Region[] oldRegions = mRegions;
+        final int oldRegionCount = mRegionCount;
+        final float[] oldDeferredX = mDeferredX;
+        final float[] oldDeferredY = mDeferredY;
+        final float[] oldKickX = mKickX;
+        final float[] oldKickY = mKickY;
+        final float[] oldPlateElapsed = mPlateElapsed;
+        final float[] oldPlateDrift = mPlateDrift;
+        final float[] oldPlateSpringForce = mPlateSpringForce;
+
+        mRegionCount = regions.size();
+        mRegions = regions.toArray(new Region[mRegionCount]);
+
+        int maxId = -1;
+
+        for (final Region region : mRegions) {
+            maxId = Math.max(maxId, region.getId());
+        }
+
+        mIndexById = new int[maxId + 1];
+        Arrays.fill(mIndexById, -1);
+
+        for (int i = 0; i < mRegionCount; ++i) {
+            mIndexById[mRegions[i].getId()] = i;
+        }
+
+        mCentroidX = new float[mRegionCount];
+        mCentroidY = new float[mRegionCount];
+        mVelocityX = new float[mRegionCount];
+        mVelocityY = new float[mRegionCount];
+        mForceX = new float[mRegionCount];
+        mForceY = new float[mRegionCount];
+
+        // Group the regions by plate
+        mPlate = new int[mRegionCount];
+        mPlateCount = 0;
+
+        for (int i = 0; i < mRegionCount; ++i) {
+            mPlate[i] = mRegions[i].getPlateId();
+            mPlateCount = Math.max(mPlateCount, mPlate[i] + 1);
+        }
+
+        mPlateRegionStart = new int[mPlateCount + 1];
+
+        for (int i = 0; i < mRegionCount; ++i) {
+            ++mPlateRegionStart[mPlate[i] + 1];
+        }
+
+        for (int p = 0; p < mPlateCount; ++p) {
+            mPlateRegionStart[p + 1] += mPlateRegionStart[p];
+        }
+
+        final int[] regionFill = Arrays.copyOf(mPlateRegionStart, mPlateCount);
+        mPlateRegions = new int[mRegionCount];
+
+        for (int i = 0; i < mRegionCount; ++i) {
+            mPlateRegions[regionFill[mPlate[i]]++] = i;
+        }
+
+        // Collect the edges, then sort them into the springs between plates followed by
+        // the springs of each plate
+        final int capacity = graph.getEdgeCount();
+        final int[] sources = new int[capacity];
+        final int[] targets = new int[capacity];
+        final float[] restLengths = new float[capacity];
+        final boolean[] samePlates = new boolean[capacity];
+        final int[] bucketStart = new int[mPlateCount + 2];
+
+        mEdgeCount = 0;
+
+        for (int edge = 0; edge < graph.getEdgeCapacity(); ++edge) {
+            if (!graph.isEdge(edge)) continue;
+
+            final int source = indexOf(graph.getNodeValue(graph.getEdgeSource(edge)).getId());
+            final int target = indexOf(graph.getNodeValue(graph.getEdgeTarget(edge)).getId());
+
+            if (source == -1 || target == -1) continue;
+
+            final Pair<Boolean, Float> value = graph.getEdgeValueById(edge);
+            final boolean samePlate = value.first && mPlate[source] == mPlate[target];
+
+            sources[mEdgeCount] = source;
+            targets[mEdgeCount] = target;
+            restLengths[mEdgeCount] = value.second;
+            samePlates[mEdgeCount] = samePlate;
+            ++bucketStart[(samePlate ? mPlate[source] + 1 : 0) + 1];
+            ++mEdgeCount;
+        }
+
+        for (int b = 0; b <= mPlateCount; ++b) {
+            bucketStart[b + 1] += bucketStart[b];
+        }
+
+        mCrossEdgeCount = bucketStart[1];
+        mPlateEdgeStart = new int[mPlateCount + 1];
+
+        for (int p = 0; p <= mPlateCount; ++p) {
+            mPlateEdgeStart[p] = bucketStart[p + 1] - mCrossEdgeCount;
+        }
+
+        mSource = new int[mEdgeCount];
+        mTarget = new int[mEdgeCount];
+        mRestLength = new float[mEdgeCount];
+        mSamePlate = new boolean[mEdgeCount];
+
+        final int[] edgeFill = Arrays.copyOf(bucketStart, mPlateCount + 1);
+
+        for (int k = 0; k < mEdgeCount; ++k) {
+            final int e = edgeFill[samePlates[k] ? mPlate[sources[k]] + 1 : 0]++;
+
+            mSource[e] = sources[k];
+            mTarget[e] = targets[k];
+            mRestLength[e] = restLengths[k];
+            mSamePlate[e] = samePlates[k];
+        }
+
+        mScratchForces = new float[2 * mRegionCount];
+
+        mPlateMass = new float[mPlateCount];
+        mPlateCentroidX = new float[mPlateCount];
+        mPlateCentroidY = new float[mPlateCount];
+        mPlateVelocityX = new float[mPlateCount];
+        mPlateVelocityY = new float[mPlateCount];
+        mPlateForceX = new float[mPlateCount];
+        mPlateForceY = new float[mPlateCount];
+        mPlateInertia = new float[mPlateCount];
+        mPlateAngularVelocity = new float[mPlateCount];
+        mPlateTorque = new float[mPlateCount];
+        mPlateElapsed = Arrays.copyOf(oldPlateElapsed, mPlateCount);
+        mPlateDrift = Arrays.copyOf(oldPlateDrift, mPlateCount);
+        mPlateSpringForce = Arrays.copyOf(oldPlateSpringForce, mPlateCount);
+        mPlateResolved = new boolean[mPlateCount];
+
+        // The stiffest region of each plate, counting the springs inside the plate only
+        final int[] plateDegree = new int[mRegionCount];
+
+        for (int e = mCrossEdgeCount; e < mEdgeCount; ++e) {
+            ++plateDegree[mSource[e]];
+            ++plateDegree[mTarget[e]];
+        }
+
+        mPlateStableStep = new float[mPlateCount];
+        Arrays.fill(mPlateStableStep, Float.POSITIVE_INFINITY);
+
+        for (int i = 0; i < mRegionCount; ++i) {
+            if (plateDegree[i] > 0) {
+                mPlateStableStep[mPlate[i]] = Math.min(mPlateStableStep[mPlate[i]],
+                    (float) (2.0 / Math.sqrt(2.0 * mSpringConstant * plateDegree[i])));
+            }
+        }
+
+        // Deferred deformation impulses stay with their regions
+        mDeferredX = new float[mRegionCount];
+        mDeferredY = new float[mRegionCount];
+
+        for (int old = 0; old < oldRegionCount && mHasDeferred; ++old) {
+            final int i = indexOf(oldRegions[old].getId());
+
+            if (i != -1) {
+                mDeferredX[i] = oldDeferredX[old];
+                mDeferredY[i] = oldDeferredY[old];
+            }
+        }
+
+        // So do the kicks not yet applied
+        mKickX = new float[mRegionCount];
+        mKickY = new float[mRegionCount];
+
+        for (int old = 0; old < oldRegionCount; ++old) {
+            final int i = indexOf(oldRegions[old].getId());
+
+            if (i != -1) {
+                mKickX[i] = oldKickX[old];
+                mKickY[i] = oldKickY[old];
+            }
+        }
+
+        // Springs inside a plate always pull or push, until they are evaluated
+        mWeight = new float[mEdgeCount];
+        mSpringScale = new float[mEdgeCount];
+        mSpringDx = new float[mEdgeCount];
+        mSpringDy = new float[mEdgeCount];
+
+        for (int e = mCrossEdgeCount; e < mEdgeCount; ++e) {
+            mWeight[e] = mSpringConstant;
+        }
+
+        // Count the edges of every region, then fill the rows
+        mRowStart = new int[mRegionCount + 1];
+
+        for (int e = 0; e < mEdgeCount; ++e) {
+            ++mRowStart[mSource[e] + 1];
+            ++mRowStart[mTarget[e] + 1];
+        }
+
+        for (int i = 0; i < mRegionCount; ++i) {
+            mRowStart[i + 1] += mRowStart[i];
+        }
+
+        final int[] fill = Arrays.copyOf(mRowStart, mRegionCount);
+        mAdjacentRegion = new int[2 * mEdgeCount];
+        mAdjacentEdge = new int[2 * mEdgeCount];
+
+        for (int e = 0; e < mEdgeCount; ++e) {
+            mAdjacentRegion[fill[mSource[e]]] = mTarget[e];
+            mAdjacentEdge[fill[mSource[e]]++] = e;
+            mAdjacentRegion[fill[mTarget[e]]] = mSource[e];
+            mAdjacentEdge[fill[mTarget[e]]++] = e;
+        }
+
+        mNextVelocityX = new float[mRegionCount];
+        mNextVelocityY = new float[mRegionCount];
+        mResidual = new float[mRegionCount];
+        mPreconditioned = new float[mRegionCount];
+        mDirection = new float[mRegionCount];
+        mProduct = new float[mRegionCount];
+        mDiagonal = new float[mRegionCount];
+        mRightHandSide = new float[mRegionCount];
+        mBlockSums = new double[(mRegionCount + ENTRIES_PER_BLOCK - 1) / ENTRIES_PER_BLOCK];
+        mWarm = false;
+
+        mGraphVersion = graph.getModificationCount();
+    }
+
+    /**
+     * Copies the centroids and velocities of the regions into their columns.
+     */
+    public void gather() {
+        gather(null);
+    }
+
+    /**
+     * Copies the centroids and velocities of the regions into their columns, moving each
+     * centroid ahead along the velocity by the time its region's position lags behind.
+     * The velocities include the kicks not yet applied to the regions.
+     * @param lag the lag of each region row (or null if no position lags)
+     */
+    public void gather(final float[] lag) {
+        IntStream.range(0, mRegionCount).parallel().forEach(i -> {
+            final Vec centroid = mRegions[i].getCentroid();
+            final Vec velocity = mRegions[i].getVelocity();
+            final float t = lag == null ? 0f : lag[i];
+
+            mCentroidX[i] = centroid.x + velocity.x * t;
+            mCentroidY[i] = centroid.y + velocity.y * t;
+            mVelocityX[i] = velocity.x + mKickX[i];
+            mVelocityY[i] = velocity.y + mKickY[i];
+        });
+    }
+
+    /**
+     * Copies the centroid and velocity of one region into its columns, moving the centroid
+     * ahead along the velocity by the time the region's position lags behind.
+     * @param index the row index
+     * @param lag the lag of the region's position
+     */
+    public void gatherRow(final int index, final float lag) {
+        final Vec centroid = mRegions[index].getCentroid();
+        final Vec velocity = mRegions[index].getVelocity();
+
+        mCentroidX[index] = centroid.x + velocity.x * lag;
+        mCentroidY[index] = centroid.y + velocity.y * lag;
+        mVelocityX[index] = velocity.x;
+        mVelocityY[index] = velocity.y;
+    }
+
+    /**
+     * @param index a row index
+     * @return the number of springs attached to the region
+     */
+    public int getDegree(final int index) {
+        return mRowStart[index + 1] - mRowStart[index];
+    }
+
+    /**
+     * @param index a row index
+     * @param k the position of a spring among those of the region, in [0, getDegree)
+     * @return the row index of the region at the other end of the spring
+     */
+    public int getNeighborRow(final int index, final int k) {
+        return mAdjacentRegion[mRowStart[index] + k];
+    }
+
+    /**
+     * @param index a row index
+     * @return the x component of the deformation impulse deferred by
+     *         computeHierarchicalForces and not yet in the region's forces
+     */
+    public float getDeferredImpulseX(final int index) {
+        return mDeferredX[index];
+    }
+
+    /**
+     * @param index a row index
+     * @return the y component of the deferred deformation impulse
+     */
+    public float getDeferredImpulseY(final int index) {
+        return mDeferredY[index];
+    }
+
+    /**
+     * Adds the velocity change of one step to the kicks of every region, instead of to the
+     * regions themselves: the force times dt with explicit integration, or the step to the
+     * next velocity with implicit integration. The caller applies a region's kick when it
+     * next visits the region, see getKickX/Y and clearKick.
+     * @param dt the timestep
+     * @param implicit whether the step was solved by solveImplicit
+     */
+    public void accumulateKicks(final float dt, final boolean implicit) {
+        IntStream.range(0, mRegionCount).parallel().forEach(i -> {
+            if (implicit) {
+                mKickX[i] += mNextVelocityX[i] - mVelocityX[i];
+                mKickY[i] += mNextVelocityY[i] - mVelocityY[i];
+            }
+            else {
+                mKickX[i] += mForceX[i] * dt;
+                mKickY[i] += mForceY[i] * dt;
+            }
+        });
+    }
+
+    /**
+     * @param index a row index
+     * @return the x component of the velocity change not yet applied to the region
+     */
+    public float getKickX(final int index) {
+        return mKickX[index];
+    }
+
+    /**
+     * @param index a row index
+     * @return the y component of the velocity change not yet applied to the region
+     */
+    public float getKickY(final int index) {
+        return mKickY[index];
+    }
+
+    /**
+     * Forgets the kick of one region, once the caller has applied it.
+     * @param index a row index
+     */
+    public void clearKick(final int index) {
+        mKickX[index] = 0f;
+        mKickY[index] = 0f;
+    }
+
+    /**
+     * @return whether some region has a deferred deformation impulse, see
+     *         clearDeferredImpulses
+     */
+    public boolean hasDeferredImpulses() {
+        return mHasDeferred;
+    }
+
+    /**
+     * Forgets the deferred deformation impulses, once the caller has applied them to the
+     * region velocities (e.g. when leaving hierarchical mode).
+     */
+    public void clearDeferredImpulses() {
+        Arrays.fill(mDeferredX, 0f);
+        Arrays.fill(mDeferredY, 0f);
+        Arrays.fill(mPlateElapsed, 0f);
+        Arrays.fill(mPlateDrift, 0f);
+        mHasDeferred = false;
+    }
+
+    /**
+     * Accumulates the spring force on every region from the gathered centroids. A spring
+     * between regions on different plates only pulls, it never pushes.
+     */
+    public void computeForces() {
+        mActiveEdgeCount = mEdgeCount;
+
+        accumulateForces(mEdgeCount);
+    }
+
+    /**
+     * Computes the force on some regions only, from the springs attached to them. The
+     * centroids of the regions and of their neighbors must have been gathered; the force
+     * columns of other rows are left as they are. Each region sums its own springs, so
+     * the cost is the total degree of the rows. A spring between two of them is evaluated
+     * by both, which write the same values to its edge columns.
+     * @param rows the row indices
+     */
+    public void computeRowForces(final int[] rows) {
+        mActiveEdgeCount = 0;
+
+        IntStream.range(0, rows.length).parallel().forEach(r -> {
+            final int i = rows[r];
+            float fx = 0f;
+            float fy = 0f;
+
+            for (int k = mRowStart[i]; k < mRowStart[i + 1]; ++k) {
+                final int e = mAdjacentEdge[k];
+                final float scale = getSpringScale(e);
+
+                // The spring pulls its source towards its target and the target back
+                final float sign = mSource[e] == i ? 1f : -1f;
+                fx += sign * scale * mSpringDx[e];
+                fy += sign * scale * mSpringDy[e];
+            }
+
+            mForceX[i] = fx;
+            mForceY[i] = fy;
+        });
+
+        for (final int i : rows) {
+            mActiveEdgeCount += getDegree(i);
+        }
+    }
+
+    /**
+     * Like computeForces, but solving on two levels (see the class comment). The force
+     * columns get, for each region, the acceleration of its plate as a rigid body at the
+     * region, plus on the ticks its plate is resolved the deformation impulse since the
+     * last resolution, divided by dt so that kicking with force * dt applies it.
+     * Deformation between resolutions is kept by the network, see
+     * getDeferredImpulseX/Y.
+     * A plate is resolved once its regions may have strayed more than tolerance cells
+     * from its rigid motion, or before its deformation has been deferred for longer than
+     * safety times the stable timestep of its own springs, since the deferred impulse is
+     * applied as one explicit step that long.
+     * Note: The springs inside plates keep the weights of their last evaluation.
+     * @param dt the timestep of this tick
+     * @param tolerance how far (in cells) regions may stray from the rigid motion of
+     *        their plate before it is resolved
+     * @param safety the fraction of a plate's stable timestep its deformation may be
+     *        deferred for
+     */
+    public void computeHierarchicalForces(final float dt, final float tolerance, final float safety) {
+        // The springs between plates every tick, and those inside the plates resolved
+        accumulateForces(mCrossEdgeCount);
+
+        IntStream.range(0, mPlateCount).parallel().forEach(p -> {
+            mPlateResolved[p] = mPlateRegionStart[p] < mPlateRegionStart[p + 1]
+                && solvePlate(p, dt, tolerance, safety * mPlateStableStep[p]);
+        });
+
+        mActiveEdgeCount = mCrossEdgeCount;
+
+        for (int p = 0; p < mPlateCount; ++p) {
+            if (mPlateResolved[p]) mActiveEdgeCount += mPlateEdgeStart[p + 1] - mPlateEdgeStart[p];
+        }
+
+        mHasDeferred = true;
+    }
+
+    /**
+     * Moves one plate as a rigid body and resolves its deformation if it is due. The
+     * force columns hold the forces of the springs between plates on entry. Plates share
+     * no regions, so plates can be solved concurrently.
+     * @param p the plate
+     * @param dt the timestep
+     * @param tolerance how far regions may stray before the plate is resolved
+     * @param maxElapsed the longest the plate's deformation may be deferred for
+     * @return whether the plate's deformation was resolved
+     */
+    private boolean solvePlate(final int p, final float dt, final float tolerance, final float maxElapsed) {
+        final int from = mPlateRegionStart[p];
+        final int to = mPlateRegionStart[p + 1];
+        final int first = mPlateRegions[from];
+
+        // The rigid body: total mass, centroid, momentum and net force
+        float offsetX = 0f;
+        float offsetY = 0f;
+        float momentumX = 0f;
+        float momentumY = 0f;
+        float forceX = 0f;
+        float forceY = 0f;
+
+        for (int k = from; k < to; ++k) {
+            final int i = mPlateRegions[k];
+
+            offsetX += wrapX(mCentroidX[i] - mCentroidX[first]);
+            offsetY += wrapY(mCentroidY[i] - mCentroidY[first]);
+            momentumX += mVelocityX[i];
+            momentumY += mVelocityY[i];
+            forceX += mForceX[i];
+            forceY += mForceY[i];
+        }
+
+        final float mass = to - from;
+        final float meanX = offsetX / mass;
+        final float meanY = offsetY / mass;
+        final float velocityX = momentumX / mass;
+        final float velocityY = momentumY / mass;
+        final float accelerationX = forceX / mass;
+        final float accelerationY = forceY / mass;
+
+        // Its rotation about the centroid: moment of inertia, angular momentum and torque
+        float inertia = 0f;
+        float angularMomentum = 0f;
+        float torque = 0f;
+
+        for (int k = from; k < to; ++k) {
+            final int i = mPlateRegions[k];
+            final float rx = wrapX(mCentroidX[i] - mCentroidX[first]) - meanX;
+            final float ry = wrapY(mCentroidY[i] - mCentroidY[first]) - meanY;
+
+            inertia += rx * rx + ry * ry;
+            angularMomentum += rx * (mVelocityY[i] - velocityY) - ry * (mVelocityX[i] - velocityX);
+            torque += rx * mForceY[i] - ry * mForceX[i];
+        }
+
+        final float angularVelocity = inertia > 0f ? angularMomentum / inertia : 0f;
+        final float angularAcceleration = inertia > 0f ? torque / inertia : 0f;
+
+        mPlateMass[p] = mass;
+        mPlateCentroidX[p] = mCentroidX[first] + meanX;
+        mPlateCentroidY[p] = mCentroidY[first] + meanY;
+        mPlateVelocityX[p] = velocityX;
+        mPlateVelocityY[p] = velocityY;
+        mPlateForceX[p] = forceX;
+        mPlateForceY[p] = forceY;
+        mPlateInertia[p] = inertia;
+        mPlateAngularVelocity[p] = angularVelocity;
+        mPlateTorque[p] = torque;
+
+        // How fast the regions stray from the rigid motion: their own velocity relative to
+        // it, the impulses they are owed and the pull of the plate's springs since it was
+        // last resolved
+        float maxStray = 0f;
+
+        for (int k = from; k < to; ++k) {
+            final int i = mPlateRegions[k];
+            final float rx = wrapX(mCentroidX[i] - mCentroidX[first]) - meanX;
+            final float ry = wrapY(mCentroidY[i] - mCentroidY[first]) - meanY;
+            final float relativeX = mVelocityX[i] - (velocityX - angularVelocity * ry);
+            final float relativeY = mVelocityY[i] - (velocityY + angularVelocity * rx);
+
+            maxStray = Math.max(maxStray, (float) Math.sqrt(relativeX * relativeX + relativeY * relativeY)
+                + (float) Math.sqrt(mDeferredX[i] * mDeferredX[i] + mDeferredY[i] * mDeferredY[i]));
+        }
+
+        mPlateElapsed[p] += dt;
+        mPlateDrift[p] += dt * (maxStray + mPlateSpringForce[p] * mPlateElapsed[p]);
+
+        final boolean resolve = mPlateDrift[p] > tolerance || mPlateElapsed[p] + dt > maxElapsed;
+
+        if (resolve) {
+            for (int k = from; k < to; ++k) {
+                final int i = mPlateRegions[k];
+                mScratchForces[2 * i] = 0f;
+                mScratchForces[2 * i + 1] = 0f;
+            }
+
+            for (int e = mCrossEdgeCount + mPlateEdgeStart[p]; e < mCrossEdgeCount + mPlateEdgeStart[p + 1]; ++e) {
+                applySpring(e, mScratchForces);
+            }
+        }
+
+        final float elapsed = mPlateElapsed[p];
+        float maxSpringForce = 0f;
+
+        for (int k = from; k < to; ++k) {
+            final int i = mPlateRegions[k];
+            final float rx = wrapX(mCentroidX[i] - mCentroidX[first]) - meanX;
+            final float ry = wrapY(mCentroidY[i] - mCentroidY[first]) - meanY;
+
+            // The rigid acceleration at the region: linear, angular and centripetal
+            final float rigidX = accelerationX - angularAcceleration * ry - angularVelocity * angularVelocity * rx;
+            final float rigidY = accelerationY + angularAcceleration * rx - angularVelocity * angularVelocity * ry;
+
+            // The part of the force between plates that deforms the plate, which has no
+            // net force or torque
+            final float residualX = mForceX[i] - rigidX;
+            final float residualY = mForceY[i] - rigidY;
+
+            if (resolve) {
+                final float springX = mScratchForces[2 * i];
+                final float springY = mScratchForces[2 * i + 1];
+
+                mForceX[i] = rigidX + residualX + (mDeferredX[i] + springX * elapsed) / dt;
+                mForceY[i] = rigidY + residualY + (mDeferredY[i] + springY * elapsed) / dt;
+                mDeferredX[i] = 0f;
+                mDeferredY[i] = 0f;
+                maxSpringForce = Math.max(maxSpringForce, (float) Math.sqrt(springX * springX + springY * springY));
+            }
+            else {
+                mForceX[i] = rigidX;
+                mForceY[i] = rigidY;
+                mDeferredX[i] += residualX * dt;
+                mDeferredY[i] += residualY * dt;
+            }
+        }
+
+        if (resolve) {
+            mPlateElapsed[p] = 0f;
+            mPlateDrift[p] = 0f;
+            mPlateSpringForce[p] = maxSpringForce;
+        }
+
+        return resolve;
+    }
+
+    /**
+     * @param dx an x offset
+     * @return the shortest offset across the wrap equal to it
+     */
+    private float wrapX(final float dx) {
+        final float width = mWrappedBox.getWidth();
+        return dx - width * Math.round(dx / width);
+    }
+
+    /**
+     * @param dy a y offset
+     * @return the shortest offset across the wrap equal to it
+     */
+    private float wrapY(final float dy) {
+        final float height = mWrappedBox.getHeight();
+        return dy - height * Math.round(dy / height);
+    }
+
+    /**
+     * @return the number of plates in the table
+     */
+    public int getPlateCount() {
+        return mPlateCount;
+    }
+
+    /**
+     * @param p a plate
+     * @return the mass of the plate as a rigid body in the last computeHierarchicalForces
+     */
+    public float getPlateMass(final int p) {
+        return mPlateMass[p];
+    }
+
+    /**
+     * @param p a plate
+     * @return the x component of the plate's centroid (unwrapped)
+     */
+    public float getPlateCentroidX(final int p) {
+        return mPlateCentroidX[p];
+    }
+
+    /**
+     * @param p a plate
+     * @return the y component of the plate's centroid (unwrapped)
+     */
+    public float getPlateCentroidY(final int p) {
+        return mPlateCentroidY[p];
+    }
+
+    /**
+     * @param p a plate
+     * @return the x component of the plate's velocity at the start of the tick
+     */
+    public float getPlateVelocityX(final int p) {
+        return mPlateVelocityX[p];
+    }
+
+    /**
+     * @param p a plate
+     * @return the y component of the plate's velocity at the start of the tick
+     */
+    public float getPlateVelocityY(final int p) {
+        return mPlateVelocityY[p];
+    }
+
+    /**
+     * @param p a plate
+     * @return the x component of the net force of the springs between plates on the plate
+     */
+    public float getPlateForceX(final int p) {
+        return mPlateForceX[p];
+    }
+
+    /**
+     * @param p a plate
+     * @return the y component of the net force of the springs between plates on the plate
+     */
+    public float getPlateForceY(final int p) {
+        return mPlateForceY[p];
+    }
+
+    /**
+     * @param p a plate
+     * @return the moment of inertia of the plate about its centroid
+     */
+    public float getPlateInertia(final int p) {
+        return mPlateInertia[p];
+    }
+
+    /**
+     * @param p a plate
+     * @return the angular velocity of the plate about its centroid at the start of the
+     *         tick, counterclockwise in world coordinates
+     */
+    public float getPlateAngularVelocity(final int p) {
+        return mPlateAngularVelocity[p];
+    }
+
+    /**
+     * @param p a plate
+     * @return the net torque of the springs between plates on the plate about its
+     *         centroid
+     */
+    public float getPlateTorque(final int p) {
+        return mPlateTorque[p];
+    }
+
+    /**
+     * @param p a plate
+     * @return whether the plate's deformation was resolved by the last
+     *         computeHierarchicalForces
+     */
+    public boolean isPlateResolved(final int p) {
+        return mPlateResolved[p];
+    }
+
+    /**
+     * @return the number of springs evaluated by the last force computation
+     */
+    public int getActiveEdgeCount() {
+        return mActiveEdgeCount;
+    }
+
+    /**
+     * Evaluates the springs of the first edge rows and sums their forces on every region
+     * into the force columns. Each spring is evaluated once, in parallel over the edge
+     * rows; then each region sums its row of the adjacency in order, stopping at the first
+     * edge row not evaluated. The cost is O(edges + regions).
+     * @param edgeCount the number of edge rows to evaluate, from the first
+     */
+    private void accumulateForces(final int edgeCount) {
+        IntStream.range(0, edgeCount).parallel().forEach(e -> mSpringScale[e] = getSpringScale(e));
+
+        IntStream.range(0, mRegionCount).parallel().forEach(i -> {
+            float fx = 0f;
+            float fy = 0f;
+
+            for (int k = mRowStart[i]; k < mRowStart[i + 1]; ++k) {
+                final int e = mAdjacentEdge[k];
+
+                if (e >= edgeCount) break;
+
+                // The spring pulls its source towards its target and the target back
+                final float sign = mSource[e] == i ? 1f : -1f;
+                fx += sign * mSpringScale[e] * mSpringDx[e];
+                fy += sign * mSpringScale[e] * mSpringDy[e];
+            }
+
+            mForceX[i] = fx;
+            mForceY[i] = fy;
+        });
+    }
+
+    /**
+     * Adds the force of one spring to both of its ends.
+     * @param e the edge row
+     * @param accumulator the interleaved x and y forces by region row
+     */
+    private void applySpring(final int e, final float[] accumulator) {
+        final float scale = getSpringScale(e);
+        final int s = mSource[e];
+        final int t = mTarget[e];
+
+        accumulator[2 * s]     += scale * mSpringDx[e];
+        accumulator[2 * s + 1] += scale * mSpringDy[e];
+        accumulator[2 * t]     -= scale * mSpringDx[e];
+        accumulator[2 * t + 1] -= scale * mSpringDy[e];
+    }
+
+    /**
+     * Evaluates one spring: stores the shortest displacement from its source to its
+     * target across the wrap and its weight in the edge columns.
+     * @param e the edge row
+     * @return the force on the source per unit of displacement
+     */
+    private float getSpringScale(final int e) {
+        final float width = mWrappedBox.getWidth();
+        final float height = mWrappedBox.getHeight();
+        final int s = mSource[e];
+        final int t = mTarget[e];
+
+        float dx = mCentroidX[t] - mCentroidX[s];
+        float dy = mCentroidY[t] - mCentroidY[s];
+        dx -= width * Math.round(dx / width);
+        dy -= height * Math.round(dy / height);
+
+        mSpringDx[e] = dx;
+        mSpringDy[e] = dy;
+
+        final float length = (float) Math.sqrt(dx * dx + dy * dy);
+        final float rawStretch = length - mRestLength[e];
+
+        mWeight[e] = mSamePlate[e] || rawStretch > 0f ? mSpringConstant : 0f;
+
+        if (length == 0f) return 0f;
+
+        final float stretch = mSamePlate[e] ? rawStretch : Math.max(0f, rawStretch);
+        return mSpringConstant * stretch / length;
+    }
+
+    /**
+     * The largest symplectic Euler timestep (see Simulation.Integration.EXPLICIT) that
+     * keeps the engaged springs of the last computeForces stable. The stiffest mode of a
+     * weighted Laplacian is at most twice the largest weighted degree, and symplectic
+     * Euler on unit masses needs dt * sqrt(stiffness) < 2. (Forward Euler, which moves
+     * with the old velocity, would grow undamped springs at any timestep.)
+     * @return the stable timestep (infinite when no spring is engaged)
+     */
+    public float getStableTimeStep() {
+        final double maxDegree = IntStream.range(0, mRegionCount).parallel().mapToDouble(i -> {
+            double degree = 0.0;
+
+            for (int k = mRowStart[i]; k < mRowStart[i + 1]; ++k) {
+                degree += mWeight[mAdjacentEdge[k]];
+            }
+
+            return degree;
+        }).max().orElse(0.0);
+
+        if (maxDegree == 0.0) return Float.POSITIVE_INFINITY;
+        else return (float) (2.0 / Math.sqrt(2.0 * maxDegree));
+    }
+
+    /**
+     * Like getStableTimeStep, but only for the springs of one region, which bounds the
+     * stiffness it sees locally.
+     * @param index a row index
+     * @return the stable timestep of the region (infinite when no spring is engaged)
+     */
+    public float getStableTimeStep(final int index) {
+        double degree = 0.0;
+
+        for (int k = mRowStart[index]; k < mRowStart[index + 1]; ++k) {
+            degree += mWeight[mAdjacentEdge[k]];
+        }
+
+        if (degree == 0.0) return Float.POSITIVE_INFINITY;
+        else return (float) (2.0 / Math.sqrt(2.0 * degree));
+    }
+
+    /**
+     * Solves for the velocities after a backward Euler step of length dt, using the forces
+     * and spring weights of the last computeForces. The results are read with
+     * getNextVelocityX/Y.
+     * @param dt the timestep
+     * @param maxIterations the most conjugate gradient iterations per axis
+     * @param tolerance the residual, relative to the right hand side, to stop at
+     * @return the number of iterations used by the slower axis
+     */
+    public int solveImplicit(final float dt, final int maxIterations, final float tolerance) {
+        final float dt2 = dt * dt;
+
+        IntStream.range(0, mRegionCount).parallel().forEach(i -> {
+            float degree = 0f;
+
+            for (int k = mRowStart[i]; k < mRowStart[i + 1]; ++k) {
+                degree += mWeight[mAdjacentEdge[k]];
+            }
+
+            mDiagonal[i] = 1f + dt2 * degree;
+        });
+
+        if (!mWarm) {
+            System.arraycopy(mVelocityX, 0, mNextVelocityX, 0, mRegionCount);
+            System.arraycopy(mVelocityY, 0, mNextVelocityY, 0, mRegionCount);
+            mWarm = true;
+        }
+
+        final int iterationsX = solveAxis(mVelocityX, mForceX, mNextVelocityX, dt, maxIterations, tolerance);
+        final int iterationsY = solveAxis(mVelocityY, mForceY, mNextVelocityY, dt, maxIterations, tolerance);
+
+        return Math.max(iterationsX, iterationsY);
+    }
+
+    /**
+     * Solves (I + dt^2 L) x = v + dt f with preconditioned conjugate gradients.
+     * @param v the velocity component at the start of the step
+     * @param f the force component at the start of the step
+     * @param x the initial guess, overwritten with the solution
+     * @param dt the timestep
+     * @param maxIterations the most iterations
+     * @param tolerance the residual, relative to the right hand side, to stop at
+     * @return the number of iterations used
+     */
+    private int solveAxis(
+            final float[] v,
+            final float[] f,
+            final float[] x,
+            final float dt,
+            final int maxIterations,
+            final float tolerance) {
+        final float dt2 = dt * dt;
+        final float[] b = mRightHandSide;
+        final float[] r = mResidual;
+        final float[] z = mPreconditioned;
+        final float[] p = mDirection;
+        final float[] q = mProduct;
+
+        IntStream.range(0, mRegionCount).parallel().forEach(i -> b[i] = v[i] + dt * f[i]);
+
+        multiply(x, q, dt2);
+
+        IntStream.range(0, mRegionCount).parallel().forEach(i -> {
+            r[i] = b[i] - q[i];
+            z[i] = r[i] / mDiagonal[i];
+            p[i] = z[i];
+        });
+
+        final double threshold = tolerance * tolerance * Math.max(dot(b, b), Double.MIN_NORMAL);
+        double rz = dot(r, z);
+
+        for (int iteration = 0; iteration < maxIterations; ++iteration) {
+            if (dot(r, r) <= threshold) return iteration;
+
+            multiply(p, q, dt2);
+
+            final float alpha = (float) (rz / dot(p, q));
+
+            IntStream.range(0, mRegionCount).parallel().forEach(i -> {
+                x[i] += alpha * p[i];
+                r[i] -= alpha * q[i];
+                z[i] = r[i] / mDiagonal[i];
+            });
+
+            final double rzNext = dot(r, z);
+            final float beta = (float) (rzNext / rz);
+            rz = rzNext;
+
+            IntStream.range(0, mRegionCount).parallel().forEach(i -> p[i] = z[i] + beta * p[i]);
+        }
+
+        return maxIterations;
+    }
+
+    /**
+     * Computes y = (I + dt^2 L) x row by row, so the rows can run in parallel.
+     * @param x the vector to multiply
+     * @param y the product
+     * @param dt2 the square of the timestep
+     */
+    private void multiply(final float[] x, final float[] y, final float dt2) {
+        IntStream.range(0, mRegionCount).parallel().forEach(i -> {
+            float sum = 0f;
+
+            for (int k = mRowStart[i]; k < mRowStart[i + 1]; ++k) {
+                sum += mWeight[mAdjacentEdge[k]] * (x[i] - x[mAdjacentRegion[k]]);
+            }
+
+            y[i] = x[i] + dt2 * sum;
+        });
+    }
+
+    /**
+     * Sums blocks of ENTRIES_PER_BLOCK entries in parallel, then the blocks in order, so
+     * the result (and so every residual and iteration count of the solver) does not
+     * depend on the number of threads.
+     * @param a the first vector
+     * @param b the second vector
+     * @return the dot product of the first mRegionCount entries
+     */
+    private double dot(final float[] a, final float[] b) {
+        IntStream.range(0, mBlockSums.length).parallel().forEach(block -> {
+            final int to = Math.min(mRegionCount, (block + 1) * ENTRIES_PER_BLOCK);
+            double sum = 0.0;
+
+            for (int i = block * ENTRIES_PER_BLOCK; i < to; ++i) {
+                sum += (double) a[i] * b[i];
+            }
+
+            mBlockSums[block] = sum;
+        });
+
+        double sum = 0.0;
+
+        for (final double blockSum : mBlockSums) {
+            sum += blockSum;
+        }
+
+        return sum;
+    }
+}
@@ -0,0 +1,65 @@
+package com.tectonics.gui;
+
+import java.awt.Point;
+
+import javax.swing.JLabel;
+import javax.swing.SwingConstants;
+
+import com.tectonics.plates.CellInfo;
+import com.tectonics.plates.Chunk;
+import com.tectonics.plates.CrossSection;
+
+/**
+ * Shows what is known about the cell under the mouse: its region, plate, elevation, sunk
+ * depth, boundary type and its layers from the top down. Only update it on the event
+ * dispatch thread, e.g. as the hover listener of a SimulationPanel.
+ */
+public class CellInspector extends JLabel {
+
+    private static final Chunk.RockType[] ROCK_TYPES = Chunk.RockType.values();
+
+    public CellInspector() {
+        setVerticalAlignment(SwingConstants.TOP);
+        setInfo(null);
+    }
+
+    /**
+     * @param info the cell to show, or null for none
+     */
+    public void setInfo(final CellInfo info) {
+        if (info == null) {
+            setText("<html>Cell: -</html>");
+            return;
+        }
+
+        final Point cell = info.getCell();
+        final StringBuilder text = new StringBuilder("<html>");
+
+        text.append("Cell: ").append(cell.x).append(", ").append(cell.y).append("<br>");
+
+        if (!info.isOccupied()) {
+            text.append("No region</html>");
+            setText(text.toString());
+            return;
+        }
+
+        text.append("Region: ").append(info.getRegionId()).append("<br>");
+        text.append("Plate: ").append(info.getPlateId()).append("<br>");
+        text.append(String.format("Elevation: %.0f m<br>", info.getElevation()));
+        text.append(String.format("Depth: %.0f m<br>", info.getDepth()));
+        text.append("Boundary: ").append(info.getBoundaryType().map(Object::toString).orElse("-")).append("<br>");
+
+        final CrossSection column = info.getColumn();
+
+        // Top down, the way the column is seen from above
+        for (int layer = column.getLayerCount() - 1; layer >= 0; --layer) {
+            final byte rockType = column.getRockType(layer);
+
+            text.append(String.format("%s: %.0f m<br>",
+                rockType == CrossSection.NO_ROCK ? "-" : ROCK_TYPES[rockType].toString(),
+                column.getTop(layer) - column.getBottom(layer)));
+        }
+
+        setText(text.append("</html>").toString());
+    }
+}
@@ -12,84 +12,93 @@ import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
 
 import com.tectonics.plates.Chunk;
+import com.tectonics.plates.CrossSection;
 
+/**
+ * Draws a cross section, one column of layers per cell along its line, scaled to fit the
+ * panel from the lowest bottom to the highest top. The layers are read straight from the
+ * flat arrays of the CrossSection, so a section can be replaced on every tick or drag.
+ */
 public class CrossSectionViewer extends JPanel {
 
-    private float mMantleDensity;
-    
-    private List<Chunk> mChunks = new ArrayList<>();
+    private static final Color SKY = new Color(180, 180, 255);
 
-    public CrossSectionViewer(final float mantleDensity) {
-        mMantleDensity = mantleDensity;
+    private static final Color MANTLE = new Color(250, 120, 0);
+
+    private volatile CrossSection mSection = CrossSection.fromChunks(new ArrayList<>(), 1f);
+
+    public CrossSectionViewer() {
         setPreferredSize(new Dimension(840, 120));
     }
 
     public CrossSectionViewer(final List<Chunk> chunks, final float mantleDensity) {
-        this(mantleDensity);
-        mChunks.addAll(chunks);
+        this();
+        mSection = CrossSection.fromChunks(chunks, mantleDensity);
         setVisible(true);
     }
 
-    public void paintChunk(
-        final Graphics g,
-        final float vertScale,
-        final float raised,
-        final int index,
-        final Chunk chunk) {
+    /**
+     * @param section the cross section to show
+     */
+    public void setSection(final CrossSection section) {
+        mSection = section;
+        repaint();
+    }
+
+    public CrossSection getSection() {
+        return mSection;
+    }
 
+    @Override
+    public void paint(Graphics g) {
+        final CrossSection section = mSection;
         final int wWidth = getWidth();
         final int wHeight = getHeight();
+        final int columnCount = section.getColumnCount();
 
-        final int width = wWidth / mChunks.size();
-        final int x = index == 0 ? 0 : width * index + wWidth % width;
-        final int baseY = (int) (raised * wHeight);
-
-        float accumulator = 0.0f;
-
-        for (final Chunk.Layer layer : chunk.getLayers()) {
-            final float adjustedThickness = vertScale * layer.getThickness().toMeters();
-            accumulator += adjustedThickness;
-
-            final int y = (int) (wHeight * (1.0f - accumulator)) - baseY;
-            final int height = (int) (wHeight * adjustedThickness);
+        final float minHeight = section.getMinBottom();
+        final float vertScale = wHeight / Math.max(1f, section.getMaxTop() - minHeight);
+        final int mantleY = toY(0f, minHeight, vertScale, wHeight);
 
-            g.setColor(layer.mRockType.mColor);
-            g.fillRect(x, y, width + (index == 0 ? wWidth % width : 0), height + 1);
-        }
-    }
+        g.setColor(SKY);
+        g.fillRect(0, 0, wWidth, mantleY);
 
-    @Override
-    public void paint(Graphics g) {
-        float maxElevation = 0.0f;
-        float maxDepth = 0.0f;
+        g.setColor(MANTLE);
+        g.fillRect(0, mantleY, wWidth, wHeight - mantleY);
 
-        for (final Chunk chunk : mChunks) {
-            final float depth = Chunk.depthSunk(chunk, mMantleDensity).toMeters();
-            final float elevation = chunk.getThickness().toMeters() - depth;
+        final Chunk.RockType[] rockTypes = Chunk.RockType.values();
+        int lastX = -1;
 
-            if (depth > maxDepth) maxDepth = depth;
-            if (elevation > maxElevation) maxElevation = elevation;
-        }
+        for (int column = 0; column < columnCount; ++column) {
+            final int x = column * wWidth / columnCount;
+            final int width = Math.max(1, (column + 1) * wWidth / columnCount - x);
 
-        final float vertScale = 1f / (maxElevation + maxDepth);
+            // Columns narrower than a pixel share it, the first one is drawn
+            if (x == lastX) continue;
 
-        final int wWidth = getWidth();
-        final int wHeight = getHeight();
+            lastX = x;
 
-        g.setColor(new Color(180, 180, 255));
-        g.fillRect(0, 0, wWidth, (int) (wHeight * 0.25f));
+            for (int layer = section.getLayerStart(column); layer < section.getLayerStart(column + 1); ++layer) {
+                final byte rockType = section.getRockType(layer);
 
-        g.setColor(new Color(250, 120, 0));
-        g.fillRect(0, (int) (wHeight * 0.25f), wWidth, (int) (wHeight * 0.75f));
+                if (rockType == CrossSection.NO_ROCK) continue;
 
-        for (int i = 0; i < mChunks.size(); ++i) {
-            final Chunk chunk = mChunks.get(i);
-            final float depth = Chunk.depthSunk(chunk, mMantleDensity).toMeters();
+                final int top = toY(section.getTop(layer), minHeight, vertScale, wHeight);
+                final int bottom = toY(section.getBottom(layer), minHeight, vertScale, wHeight);
 
-            paintChunk(g, vertScale, vertScale * (maxDepth - depth), i, chunk);
+                g.setColor(rockTypes[rockType].mColor);
+                g.fillRect(x, top, width, bottom - top + 1);
+            }
         }
     }
 
+    /**
+     * @return the row of the panel at a height
+     */
+    private static int toY(final float height, final float minHeight, final float vertScale, final int wHeight) {
+        return wHeight - (int) ((height - minHeight) * vertScale);
+    }
+
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> {
             final JFrame frame = new JFrame();
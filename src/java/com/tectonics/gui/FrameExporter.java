@@ -0,0 +1,319 @@
+package com.tectonics.gui;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import com.tectonics.Simulation;
+import com.tectonics.gui.SimulationPanel.SimulationRenderMode;
+import com.tectonics.plates.RasterPyramid;
+import com.tectonics.plates.Region;
+import com.tectonics.plates.WorldRaster;
+import com.tectonics.util.Console;
+
+/**
+ * <p>Exports a time-lapse of a simulation as numbered PNG files, without a window.</p>
+ *
+ * <p>Every so many ticks, capture takes a snapshot of the world on the tick thread: it
+ * brings a copied raster pyramid (see RasterPyramid) up to date with the raster tiles that
+ * changed since the pyramid was last captured into, and captures the overlay. Everything
+ * else happens on a fixed pool of encoder threads while the simulation goes on: the whole
+ * world is rendered one pixel per cell, by the WorldRenderer kept with the pyramid (which
+ * only draws the tiles that changed since it last rendered), copied into a frame with the
+ * overlay painted on and encoded.</p>
+ *
+ * <p>At most a fixed number of frames are waiting, being rendered or being encoded at
+ * once, each with its own pyramid and renderer. When the encoders fall that far behind, a
+ * capture is skipped instead of waited for, so exporting never stalls the tick loop.</p>
+ *
+ * <p>Frames are encoded into temporary files and only numbered once written, in the order
+ * they were captured, so the frames written stay numbered consecutively even when some
+ * fail.</p>
+ */
+public class FrameExporter {
+
+    private final File mDirectory;
+
+    private final String mPrefix;
+
+    /**
+     * The number of ticks between captures
+     */
+    private final int mInterval;
+
+    private final SimulationRenderMode mMode;
+
+    /**
+     * A copied pyramid of the world raster and the renderer that last rendered it
+     */
+    private static final class Slot {
+
+        private final RasterPyramid mPyramid;
+
+        private final WorldRenderer mRenderer = new WorldRenderer();
+
+        private Slot(final WorldRaster raster) {
+            // Only level 0 is shown
+            mPyramid = new RasterPyramid(raster, 1, true);
+        }
+    }
+
+    /**
+     * The slots not used by a frame in flight
+     */
+    private final Queue<Slot> mFreeSlots = new ConcurrentLinkedQueue<>();
+
+    private final ExecutorService mEncoders;
+
+    /**
+     * A permit per frame that may be waiting, being rendered or being encoded
+     */
+    private final Semaphore mPending;
+
+    private long mTicks = 0L;
+
+    private int mFrameCount = 0;
+
+    private int mSkippedCount = 0;
+
+    /**
+     * The temporary file of each frame encoded but not numbered yet, by capture number,
+     * or null if the frame could not be encoded
+     */
+    private final Map<Integer, File> mEncoded = new HashMap<>();
+
+    /**
+     * The capture number of the next frame to number
+     */
+    private int mNextCapture = 0;
+
+    private final AtomicInteger mWrittenCount = new AtomicInteger();
+
+    private final AtomicInteger mFailedCount = new AtomicInteger();
+
+    /**
+     * @param directory the directory to write the frames to, created if missing
+     * @param prefix the start of the frame file names, followed by the frame number
+     * @param interval the number of ticks between captures
+     * @param mode what to show
+     * @param encoderCount the number of encoder threads
+     * @param maxPending the largest number of frames waiting or being encoded at once
+     */
+    public FrameExporter(
+        final File directory,
+        final String prefix,
+        final int interval,
+        final SimulationRenderMode mode,
+        final int encoderCount,
+        final int maxPending) {
+
+        assert interval > 0 && encoderCount > 0 && maxPending >= encoderCount;
+
+        mDirectory = directory;
+        mPrefix = prefix;
+        mInterval = interval;
+        mMode = mode;
+        mPending = new Semaphore(maxPending);
+
+        final AtomicInteger threadCount = new AtomicInteger();
+
+        mEncoders = Executors.newFixedThreadPool(encoderCount, runnable -> {
+            final Thread thread = new Thread(runnable, "Frame Encoder " + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+
+        mDirectory.mkdirs();
+    }
+
+    /**
+     * Counts a tick of the simulation and captures a frame if one is due, to be rendered
+     * and written in the background. Call after each update, on the thread updating the
+     * simulation.
+     * @param sim the simulation
+     * @return whether a frame was captured
+     */
+    public boolean capture(final Simulation sim) {
+        if (mTicks++ % mInterval != 0) return false;
+
+        if (!mPending.tryAcquire()) {
+            ++mSkippedCount;
+            return false;
+        }
+
+        final Slot slot = takeSlot(sim);
+        slot.mPyramid.update();
+
+        final List<Region> regions = sim.getRegions();
+        final Overlay overlay = Overlay.capture(sim, mMode);
+        final int capture = mFrameCount++;
+
+        mEncoders.execute(() -> {
+            File file = null;
+
+            try {
+                final BufferedImage frame = render(slot, regions, overlay);
+                mFreeSlots.add(slot);
+
+                file = new File(mDirectory, String.format("%s%06d.part", mPrefix, capture));
+                ImageIO.write(frame, "png", file);
+            } catch (final Exception exception) {
+                if (file != null) file.delete();
+                file = null;
+            } finally {
+                number(capture, file);
+                mPending.release();
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * @param sim the simulation
+     * @return a free slot of the simulation's raster, new if there is none
+     */
+    private Slot takeSlot(final Simulation sim) {
+        final Slot slot = mFreeSlots.poll();
+
+        if (slot == null || slot.mPyramid.getRaster() != sim.getRaster()) return new Slot(sim.getRaster());
+        else return slot;
+    }
+
+    /**
+     * Renders the whole world from a slot, one pixel per cell.
+     * @param slot the slot, captured into
+     * @param regions the regions of the simulation when it was captured
+     * @param overlay the overlay of the mode when it was captured
+     * @return a new image of the frame, with the overlay painted on
+     */
+    private BufferedImage render(final Slot slot, final List<Region> regions, final Overlay overlay) {
+        final int width = slot.mPyramid.getWidth(0);
+        final int height = slot.mPyramid.getHeight(0);
+
+        slot.mRenderer.render(regions, mMode, slot.mPyramid, new Viewport(0.0, 0.0, 0, width, height), overlay);
+
+        final BufferedImage frame = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        final int[] pixels = ((DataBufferInt) slot.mRenderer.getImage().getRaster().getDataBuffer()).getData();
+        System.arraycopy(pixels, 0, ((DataBufferInt) frame.getRaster().getDataBuffer()).getData(), 0, pixels.length);
+
+        if (slot.mRenderer.hasOverlay()) {
+            final Graphics g = frame.getGraphics();
+            slot.mRenderer.paintOverlay(g);
+            g.dispose();
+        }
+
+        return frame;
+    }
+
+    /**
+     * Records that a frame was encoded (or not) and gives the next numbers to the frames
+     * encoded so far that every earlier capture is done with, in capture order.
+     * @param capture the capture number of the frame
+     * @param file the temporary file the frame was encoded into, or null if it was not
+     */
+    private synchronized void number(final int capture, final File file) {
+        mEncoded.put(capture, file);
+
+        while (mEncoded.containsKey(mNextCapture)) {
+            final File encoded = mEncoded.remove(mNextCapture++);
+            final File numbered = new File(mDirectory, String.format("%s%06d.png", mPrefix, mWrittenCount.get()));
+
+            if (encoded != null && encoded.renameTo(numbered)) {
+                mWrittenCount.incrementAndGet();
+            } else {
+                if (encoded != null) encoded.delete();
+                mFailedCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Waits for the frames captured so far to be written and stops the encoders.
+     * @param timeout the longest time to wait
+     * @param unit the unit of the timeout
+     * @return whether every frame was written in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean close(final long timeout, final TimeUnit unit) throws InterruptedException {
+        mEncoders.shutdown();
+        return mEncoders.awaitTermination(timeout, unit) && mFailedCount.get() == 0;
+    }
+
+    /**
+     * @return the number of frames captured, written or not
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return the number of captures skipped because the encoders were behind
+     */
+    public int getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    /**
+     * @return the number of frames written so far
+     */
+    public int getWrittenCount() {
+        return mWrittenCount.get();
+    }
+
+    /**
+     * @return the number of frames that could not be written
+     */
+    public int getFailedCount() {
+        return mFailedCount.get();
+    }
+
+    /**
+     * Runs a simulation without a window, exporting a time-lapse of it.
+     * Usage: FrameExporter directory width height ticks interval [mode]
+     */
+    public static void main(String[] args) throws InterruptedException {
+        final File directory = new File(args[0]);
+        final int width = Integer.parseInt(args[1]);
+        final int height = Integer.parseInt(args[2]);
+        final int ticks = Integer.parseInt(args[3]);
+        final int interval = Integer.parseInt(args[4]);
+        final SimulationRenderMode mode = args.length > 5 ? SimulationRenderMode.valueOf(args[5]) : SimulationRenderMode.DEFAULT;
+        final int encoderCount = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+        final Simulation sim = new Simulation(width, height, 6);
+        final FrameExporter exporter = new FrameExporter(directory, "frame", interval, mode, encoderCount, 2 * encoderCount);
+
+        final Console console = new Console();
+        console.startProgressBar("Simulating", ticks);
+
+        for (int tick = 0; tick < ticks; ++tick) {
+            sim.update();
+            exporter.capture(sim);
+            console.updateProgressBar();
+        }
+
+        console.completeProgressBar();
+
+        exporter.close(1, TimeUnit.HOURS);
+
+        System.out.println(
+            exporter.getWrittenCount() + " frames written, " +
+            exporter.getSkippedCount() + " skipped, " +
+            exporter.getFailedCount() + " failed");
+    }
+}
@@ -0,0 +1,197 @@
+package com.tectonics.gui;
+
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.tectonics.Simulation;
+import com.tectonics.gui.SimulationPanel.SimulationRenderMode;
+import com.tectonics.plates.RasterPyramid;
+import com.tectonics.plates.Region;
+
+/**
+ * <p>Double buffered frames of a simulation, produced away from the event dispatch
+ * thread.</p>
+ *
+ * <p>publish takes a snapshot of the simulation: a copy of its raster pyramid, its region
+ * list and the overlay of a mode. It is the only part that reads the simulation, so only
+ * it needs the simulation to hold still. produce renders the latest snapshot, which never
+ * changes once published, and can run while the simulation is updated, so a frame of a
+ * new view (after a pan or a zoom) waits for no tick.</p>
+ *
+ * <p>The snapshots alternate between two pyramids, each brought up to date with only the
+ * raster tiles that changed since it was last published (see RasterPyramid). A pyramid is
+ * locked while it is updated or rendered, so that publishing waits for a render still
+ * reading the snapshot before last, should there be one.</p>
+ *
+ * <p>Each buffer is a WorldRenderer with its own image. produce renders a complete frame
+ * into the back buffer on the calling (worker) thread and then swaps it with the front
+ * buffer through an AtomicReference, so draw, which runs on the event dispatch thread,
+ * only ever blits a finished frame and never reads the simulation. A buffer is locked
+ * while it is rendered or blitted, in case a paint still holds a buffer that has just
+ * become the back buffer again.</p>
+ *
+ * <p>Buffers keep their images and are only drawn again where the world changed since
+ * they were last rendered (see WorldRenderer), so that a frame costs about as much as the
+ * cells that changed. The buffers not shown are kept by the mode they last rendered, so
+ * switching back to a mode only catches its buffer up with the ticks since, and costs no
+ * more than a blit when there were none.</p>
+ */
+public class FrameProducer {
+
+    /**
+     * What publish took from a simulation, never changed afterwards
+     */
+    private static final class Snapshot {
+
+        private final Simulation mSim;
+
+        private final SimulationRenderMode mMode;
+
+        private final RasterPyramid mPyramid;
+
+        private final List<Region> mRegions;
+
+        private final Overlay mOverlay;
+
+        private Snapshot(
+            final Simulation sim,
+            final SimulationRenderMode mode,
+            final RasterPyramid pyramid,
+            final List<Region> regions,
+            final Overlay overlay) {
+
+            mSim = sim;
+            mMode = mode;
+            mPyramid = pyramid;
+            mRegions = regions;
+            mOverlay = overlay;
+        }
+    }
+
+    /**
+     * The buffer being shown, null before the first frame
+     */
+    private final AtomicReference<WorldRenderer> mFront = new AtomicReference<>();
+
+    /**
+     * The most buffers kept per mode besides the front one
+     */
+    private static final int MAX_BACKS_PER_MODE = 2;
+
+    /**
+     * The buffers not shown, by the mode they last rendered and most recently shown
+     * first, only used by produce
+     */
+    private final Map<SimulationRenderMode, Deque<WorldRenderer>> mBacks = new EnumMap<>(SimulationRenderMode.class);
+
+    /**
+     * The latest snapshot, null before the first one
+     */
+    private volatile Snapshot mSnapshot = null;
+
+    /**
+     * The pyramid the next snapshot is taken into, the one not in the latest snapshot
+     * (null until there are two), only used by publish
+     */
+    private RasterPyramid mSpare = null;
+
+    /**
+     * Takes a snapshot of a simulation for produce to render.
+     * Note: Call from one thread at a time, and not while the simulation is updated.
+     * @param sim the simulation
+     * @param mode what to show
+     */
+    public void publish(final Simulation sim, final SimulationRenderMode mode) {
+        final Snapshot last = mSnapshot;
+        RasterPyramid pyramid = mSpare;
+
+        if (pyramid == null || pyramid.getRaster() != sim.getRaster()) {
+            pyramid = new RasterPyramid(sim.getRaster(), Integer.MAX_VALUE, true);
+        }
+
+        synchronized (pyramid) {
+            pyramid.update();
+        }
+
+        mSnapshot = new Snapshot(sim, mode, pyramid, sim.getRegions(), Overlay.capture(sim, mode));
+        mSpare = last == null ? null : last.mPyramid;
+    }
+
+    /**
+     * @param sim a simulation
+     * @param mode a mode
+     * @return whether the latest snapshot was taken of the simulation in the mode
+     */
+    public boolean isPublished(final Simulation sim, final SimulationRenderMode mode) {
+        final Snapshot snapshot = mSnapshot;
+        return snapshot != null && snapshot.mSim == sim && snapshot.mMode == mode;
+    }
+
+    /**
+     * Renders a frame of the latest snapshot into the back buffer of its mode and makes
+     * it the front buffer. Does nothing before the first snapshot.
+     * @param view the part of the world to show
+     * @return the areas of the view that may look different from the previous frame,
+     *         or null if the whole view may
+     */
+    public synchronized List<Rectangle> produce(final Viewport view) {
+        final Snapshot snapshot = mSnapshot;
+
+        if (snapshot == null) return Collections.emptyList();
+
+        final SimulationRenderMode mode = snapshot.mMode;
+        final Deque<WorldRenderer> backs = mBacks.computeIfAbsent(mode, key -> new ArrayDeque<>());
+        final WorldRenderer back = backs.isEmpty() ? new WorldRenderer() : backs.removeFirst();
+        final List<Rectangle> damage;
+
+        synchronized (snapshot.mPyramid) {
+            synchronized (back) {
+                // The back buffer is a frame (or more) behind, so this covers the front's changes too
+                damage = back.render(snapshot.mRegions, mode, snapshot.mPyramid, view, snapshot.mOverlay);
+            }
+        }
+
+        final WorldRenderer front = mFront.getAndSet(back);
+
+        if (front == null) return null;
+
+        final Deque<WorldRenderer> frontBacks = mBacks.computeIfAbsent(front.getMode(), key -> new ArrayDeque<>());
+        frontBacks.addFirst(front);
+
+        if (frontBacks.size() > MAX_BACKS_PER_MODE) frontBacks.removeLast();
+
+        if (front.getMode() != mode || !view.equals(front.getView()) || front.getOverlay() != snapshot.mOverlay) return null;
+        else return damage;
+    }
+
+    /**
+     * @return the lowest zoom a view can be rendered at, the one showing the coarsest
+     *         level of the raster pyramid (0 before the first frame)
+     */
+    public int getMinZoom() {
+        final Snapshot snapshot = mSnapshot;
+        return snapshot == null ? 0 : 1 - snapshot.mPyramid.getLevelCount();
+    }
+
+    /**
+     * Blits the front buffer and draws its overlay, if a frame was produced.
+     * @param g the graphics to draw with
+     */
+    public void draw(final Graphics g) {
+        final WorldRenderer front = mFront.get();
+
+        if (front == null) return;
+
+        synchronized (front) {
+            g.drawImage(front.getImage(), 0, 0, null);
+            front.paintOverlay(g);
+        }
+    }
+}
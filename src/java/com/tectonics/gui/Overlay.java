@@ -0,0 +1,141 @@
+package com.tectonics.gui;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.tectonics.Simulation;
+import com.tectonics.gui.SimulationPanel.SimulationRenderMode;
+import com.tectonics.plates.Region;
+import com.tectonics.util.Graph;
+import com.tectonics.util.Pair;
+import com.tectonics.util.Vec;
+
+/**
+ * <p>The parts of a render mode that are not per cell, in world coordinates: the region
+ * velocities over the boundary types and the edges of the distance graph. (Boundaries
+ * themselves are per cell, see WorldRaster.classifyBoundaries.)</p>
+ *
+ * <p>An overlay is captured once per tick and mode and never changes afterwards, so the
+ * buffers of a FrameProducer share it and redrawing it after a repaint, resize or pan
+ * costs only the drawing.</p>
+ */
+public final class Overlay {
+
+    /**
+     * The overlay of the modes without one
+     */
+    public static final Overlay EMPTY = new Overlay(-1L, Collections.emptyList(), new int[0]);
+
+    private final long mTick;
+
+    /**
+     * The velocity arrows, as (velocity, position) pairs
+     */
+    private final List<Pair<Vec, Point>> mArrows;
+
+    /**
+     * The distance graph lines, as consecutive x1, y1, x2, y2
+     */
+    private final int[] mLines;
+
+    private Overlay(final long tick, final List<Pair<Vec, Point>> arrows, final int[] lines) {
+        mTick = tick;
+        mArrows = arrows;
+        mLines = lines;
+    }
+
+    /**
+     * Captures the overlay of a mode from the current state of a simulation.
+     * Note: The simulation must not be updated while it is captured.
+     * @param sim the simulation
+     * @param mode what to show
+     * @return the overlay, EMPTY for the modes without one
+     */
+    public static Overlay capture(final Simulation sim, final SimulationRenderMode mode) {
+        if (mode == SimulationRenderMode.BOUNDARY_TYPES) {
+            final List<Pair<Vec, Point>> arrows = new ArrayList<>(sim.getRegions().size());
+
+            for (final Region region : sim.getRegions()) {
+                arrows.add(new Pair<>(region.getVelocity(), region.getCentroid().truncate()));
+            }
+
+            return new Overlay(sim.getTickCount(), Collections.unmodifiableList(arrows), new int[0]);
+        }
+
+        if (mode == SimulationRenderMode.DISTANCE_GRAPH) {
+            final Graph<Region, Pair<Boolean, Float>> graph = sim.getGraph();
+            final int width = sim.getWrappedBox().getWidth();
+            final int height = sim.getWrappedBox().getHeight();
+            final int[] lines = new int[4 * graph.getEdgeCount()];
+            int count = 0;
+
+            for (int edge = 0; edge < graph.getEdgeCapacity(); ++edge) {
+                if (!graph.isEdge(edge)) continue;
+
+                final Point c1 = graph.getNodeValue(graph.getEdgeSource(edge)).getCentroid().truncate();
+                final Point c2 = sim.getWrappedBox().wrap(graph.getNodeValue(graph.getEdgeTarget(edge)).getCentroid().truncate());
+
+                // The duplicate of the target closest to the source
+                lines[4 * count]     = getClosest(c2.x, c1.x, width);
+                lines[4 * count + 1] = getClosest(c2.y, c1.y, height);
+                lines[4 * count + 2] = c1.x;
+                lines[4 * count + 3] = c1.y;
+                ++count;
+            }
+
+            return new Overlay(sim.getTickCount(), Collections.emptyList(), lines);
+        }
+
+        return EMPTY;
+    }
+
+    /**
+     * @param wrapped a wrapped coordinate
+     * @param target another coordinate
+     * @param size the size of the world along the axis
+     * @return the first of wrapped - size, wrapped and wrapped + size closest to target
+     */
+    private static int getClosest(final int wrapped, final int target, final int size) {
+        int closest = wrapped - size;
+
+        for (final int candidate : new int[] { wrapped, wrapped + size }) {
+            if (Math.abs(candidate - target) < Math.abs(closest - target)) closest = candidate;
+        }
+
+        return closest;
+    }
+
+    /**
+     * @return the tick the overlay was captured on (-1 for EMPTY)
+     */
+    public long getTick() {
+        return mTick;
+    }
+
+    /**
+     * @return whether there is nothing to draw
+     */
+    public boolean isEmpty() {
+        return mArrows.isEmpty() && mLines.length == 0;
+    }
+
+    /**
+     * Draws the overlay in world coordinates.
+     * @param g the graphics to draw with
+     */
+    public void paint(final Graphics g) {
+        for (final Pair<Vec, Point> arrow : mArrows) {
+            arrow.first.paint(g, Color.ORANGE, 150f, arrow.second);
+        }
+
+        g.setColor(Color.CYAN);
+
+        for (int k = 0; k < mLines.length; k += 4) {
+            g.drawLine(mLines[k], mLines[k + 1], mLines[k + 2], mLines[k + 3]);
+        }
+    }
+}
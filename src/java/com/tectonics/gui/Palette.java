@@ -0,0 +1,88 @@
+package com.tectonics.gui;
+
+import java.awt.Color;
+import java.util.List;
+
+import com.tectonics.plates.Chunk;
+import com.tectonics.plates.Region;
+import com.tectonics.util.Util;
+
+/**
+ * Packed ARGB color tables for the render modes, so that coloring a cell is an array
+ * load instead of a color conversion. Tables indexed by a code that can stand for an
+ * empty cell (-1) are offset by one, with a transparent entry first.
+ */
+public class Palette {
+
+    /**
+     * The number of entries of the height ramp
+     */
+    public static final int HEIGHT_LEVELS = 4096;
+
+    /**
+     * Util.heightColor sampled evenly from the lowest (first) to the highest elevation
+     */
+    private static final int[] HEIGHT_RAMP = new int[HEIGHT_LEVELS];
+
+    /**
+     * The color of each top rock code plus one
+     */
+    private static final int[] ROCK_COLORS = new int[Chunk.RockType.values().length + 1];
+
+    static {
+        for (int level = 0; level < HEIGHT_LEVELS; ++level) {
+            HEIGHT_RAMP[level] = Util.heightColor(level / (float) (HEIGHT_LEVELS - 1), 1f, 0f).getRGB();
+        }
+
+        for (final Chunk.RockType rockType : Chunk.RockType.values()) {
+            ROCK_COLORS[rockType.ordinal() + 1] = rockType.mColor.getRGB();
+        }
+    }
+
+    /**
+     * @return the height ramp, indexed by the level of getHeightScale. Not to be modified.
+     */
+    public static int[] getHeightRamp() {
+        return HEIGHT_RAMP;
+    }
+
+    /**
+     * Quantizes elevations against a range: the ramp level of an elevation e is
+     * (int) ((e - min) * scale + 0.5f).
+     * @param max the highest elevation
+     * @param min the lowest elevation
+     * @return the scale
+     */
+    public static float getHeightScale(final float max, final float min) {
+        return max > min ? (HEIGHT_LEVELS - 1) / (max - min) : 0f;
+    }
+
+    /**
+     * @return the colors of the top rock codes of WorldRaster, indexed by code plus one.
+     *         Not to be modified.
+     */
+    public static int[] getRockColors() {
+        return ROCK_COLORS;
+    }
+
+    /**
+     * Gives every region its own hue, spread evenly in the order of the regions.
+     * @param regions the live regions
+     * @return the colors of the regions, indexed by id plus one
+     */
+    public static int[] getRegionColors(final List<Region> regions) {
+        int maxId = -1;
+
+        for (final Region region : regions) {
+            maxId = Math.max(maxId, region.getId());
+        }
+
+        final int[] colors = new int[maxId + 2];
+
+        for (int k = 0; k < regions.size(); ++k) {
+            colors[regions.get(k).getId() + 1] = Color.getHSBColor(k / (float) regions.size(), 1.0f, 1.0f).getRGB();
+        }
+
+        return colors;
+    }
+}
@@ -1,22 +1,29 @@
 package com.tectonics.gui;
 
-import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
 
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
 import com.tectonics.Simulation;
-import com.tectonics.util.Util;
-import com.tectonics.util.Pair;
-import com.tectonics.util.Vec;
-import com.tectonics.util.Graph;
-import com.tectonics.plates.Chunk;
-import com.tectonics.plates.Region;
+import com.tectonics.plates.CellInfo;
+import com.tectonics.plates.CrossSection;
 
 public class SimulationPanel extends JPanel {
     
@@ -40,30 +47,224 @@ public class SimulationPanel extends JPanel {
         }
     }
 
-    private Optional<Simulation> mTargetSim = Optional.empty();
-
-    private SimulationRenderMode mDisplayMode = SimulationRenderMode.DEFAULT;
-
+    /**
+     * The shortest time between two inspections of the hovered cell, about one frame of a
+     * 60 Hz display
+     */
+    private static final long HOVER_INTERVAL_MS = 16L;
+
+    private volatile Optional<Simulation> mTargetSim = Optional.empty();
+
+    private volatile SimulationRenderMode mDisplayMode = SimulationRenderMode.DEFAULT;
+
+    /**
+     * The part of the world shown, dragged to pan and scrolled to zoom
+     */
+    private volatile Viewport mView;
+
+    private final FrameProducer mFrames = new FrameProducer();
+
+    /**
+     * Held while the simulation is updated or read, so that nothing reads it half updated.
+     * Frames are rendered from snapshots published under it (see FrameProducer), without
+     * it.
+     */
+    private final Object mSimLock = new Object();
+
+    /**
+     * Renders the frames requested outside of update, e.g. after a mode change
+     */
+    private final ScheduledExecutorService mFrameExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "Frame Producer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Extracts the cross sections and inspects the hovered cells requested outside of
+     * update. It waits for the simulation lock on a thread of its own, so a tick in
+     * progress never holds up a frame.
+     */
+    private final ScheduledExecutorService mInspectExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "Inspector");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Whether a frame was requested that has not started rendering yet, so that a burst of
+     * requests (e.g. while dragging) renders once
+     */
+    private final AtomicBoolean mFrameRequested = new AtomicBoolean(false);
+
+    /**
+     * The ends of the cross section line in (unwrapped) world coordinates, dragged with the
+     * right mouse button, null while there is none
+     */
+    private volatile Point[] mSectionLine = null;
+
+    /**
+     * Told on the event dispatch thread about each cross section extracted along the line
+     */
+    private volatile Consumer<CrossSection> mSectionListener = null;
+
+    private final AtomicBoolean mSectionRequested = new AtomicBoolean(false);
+
+    /**
+     * The (unwrapped) cell under the mouse, null while the mouse is outside the panel
+     */
+    private volatile Point mHoverCell = null;
+
+    /**
+     * Told on the event dispatch thread about the hovered cell, with null when the mouse
+     * leaves the panel
+     */
+    private volatile Consumer<CellInfo> mHoverListener = null;
+
+    private final AtomicBoolean mHoverRequested = new AtomicBoolean(false);
 
     public SimulationPanel(final int width, final int height) {
         setPreferredSize(new Dimension(width, height));
         setBackground(Color.BLACK);
+
+        mView = new Viewport(0.0, 0.0, 0, width, height);
+
+        addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(final ComponentEvent e) {
+                setView(mView.resize(getWidth(), getHeight()));
+            }
+        });
+
+        final MouseAdapter navigation = new MouseAdapter() {
+            private Point mDragPoint = null;
+
+            private Point mSectionStart = null;
+
+            @Override
+            public void mousePressed(final MouseEvent e) {
+                if (SwingUtilities.isRightMouseButton(e)) {
+                    mSectionStart = toWorld(e.getPoint());
+                    setSectionLine(mSectionStart, mSectionStart);
+                } else {
+                    mDragPoint = e.getPoint();
+                }
+            }
+
+            @Override
+            public void mouseDragged(final MouseEvent e) {
+                if (mSectionStart != null) {
+                    setSectionLine(mSectionStart, toWorld(e.getPoint()));
+                }
+
+                if (mDragPoint != null) {
+                    setView(mView.pan(e.getX() - mDragPoint.x, e.getY() - mDragPoint.y));
+                    mDragPoint = e.getPoint();
+                }
+            }
+
+            @Override
+            public void mouseReleased(final MouseEvent e) {
+                mDragPoint = null;
+                mSectionStart = null;
+            }
+
+            @Override
+            public void mouseMoved(final MouseEvent e) {
+                mHoverCell = toWorld(e.getPoint());
+                requestHover();
+            }
+
+            @Override
+            public void mouseExited(final MouseEvent e) {
+                mHoverCell = null;
+                requestHover();
+            }
+
+            @Override
+            public void mouseWheelMoved(final MouseWheelEvent e) {
+                setView(mView.zoom(-e.getWheelRotation(), e.getX(), e.getY(), mFrames.getMinZoom()));
+            }
+        };
+
+        addMouseListener(navigation);
+        addMouseMotionListener(navigation);
+        addMouseWheelListener(navigation);
     }
 
     public void setSim(final Simulation sim) {
         mTargetSim = Optional.of(sim);
-        repaint();
+        requestFrame();
     }
 
     public void setMode(final SimulationRenderMode mode) {
         mDisplayMode = mode;
+        requestFrame();
+    }
+
+    /**
+     * @param view the part of the world to show
+     */
+    public void setView(final Viewport view) {
+        mView = view;
+        requestFrame();
+    }
+
+    public Viewport getView() {
+        return mView;
+    }
+
+    /**
+     * Sets the line to extract cross sections along, on this tick and every later one.
+     * @param from the cell the line starts at
+     * @param to the cell the line ends at
+     */
+    public void setSectionLine(final Point from, final Point to) {
+        mSectionLine = new Point[] { new Point(from), new Point(to) };
+        requestSection();
         repaint();
     }
 
+    /**
+     * @param listener told on the event dispatch thread about each cross section
+     *        extracted along the section line
+     */
+    public void setSectionListener(final Consumer<CrossSection> listener) {
+        mSectionListener = listener;
+    }
+
+    /**
+     * @param listener told on the event dispatch thread about the cell under the mouse,
+     *        at most once per HOVER_INTERVAL_MS and after each tick, and with null when
+     *        the mouse leaves the panel
+     */
+    public void setHoverListener(final Consumer<CellInfo> listener) {
+        mHoverListener = listener;
+    }
+
+    /**
+     * Advances the simulation by a tick and renders the new frame, both on the calling
+     * thread, which should not be the event dispatch thread. The frame is rendered after
+     * the simulation lock is released, from the snapshot published at the end of the tick.
+     */
     public void update() {
         if(mTargetSim.isPresent()) {
-            mTargetSim.get().update();
-            repaint();
+            final CrossSection section;
+            final Point hoverCell = mHoverCell;
+            final CellInfo info;
+
+            synchronized (mSimLock) {
+                final Simulation sim = mTargetSim.get();
+                sim.update();
+                mFrames.publish(sim, mDisplayMode);
+                section = extractSection(sim);
+                info = inspectHover(sim, hoverCell);
+            }
+
+            repaint(mFrames.produce(mView));
+            publishSection(section);
+
+            if (hoverCell != null) publishHover(hoverCell, info);
         }
     }
 
@@ -75,127 +276,173 @@ public class SimulationPanel extends JPanel {
         return mTargetSim.isPresent();
     }
 
-    @Override
-    public void paint(Graphics g) {
-        super.paint(g);
+    /**
+     * Renders a frame of the current simulation, mode and view in the background, unless
+     * one is already waiting to. Only a new simulation or mode takes a snapshot, under the
+     * simulation lock; a new view is rendered from the latest snapshot without it.
+     */
+    private void requestFrame() {
+        if (!mFrameRequested.compareAndSet(false, true)) return;
 
-        if (!hasSim()) return;
+        mFrameExecutor.execute(() -> {
+            mFrameRequested.set(false);
 
-        Simulation sim = mTargetSim.get();
+            if (!hasSim()) return;
 
-        float maxElevation = Float.NEGATIVE_INFINITY;
-        float minElevation = Float.POSITIVE_INFINITY;
+            final Simulation sim = mTargetSim.get();
+            final SimulationRenderMode mode = mDisplayMode;
 
-        final List<Region> regions = sim.getRegions();
+            if (!mFrames.isPublished(sim, mode)) {
+                synchronized (mSimLock) {
+                    mFrames.publish(sim, mode);
+                }
+            }
 
-        for (final Region region : regions) {
-            final Pair<Float, Float> pair = region.getElevationRange();
-            if (pair.first > maxElevation) maxElevation = pair.first;
-            if (pair.second < minElevation) minElevation = pair.second;
-        }
+            repaint(mFrames.produce(mView));
+        });
+    }
 
-        int counter = 0;
-
-        for (final Region region : regions) {
-            for (int i = 0; i < region.getHeight(); ++i) {
-                for (int j = 0; j < region.getWidth(); ++j) {
-                    final Point location = Vec.sum(region.getPosition(), Vec.extend(new Point(j, i))).truncate();
-                    final Optional<Chunk> chunk = region.getChunkAt(j, i);
-
-                    if (chunk.isPresent()) {
-                        switch(mDisplayMode) {
-                            case HEIGHT_MAP:
-                                g.setColor(Util.heightColor(region.getElevationAt(j, i), maxElevation, minElevation));
-                                break;
-                            
-                            case BOUNDARIES:
-                            case BOUNDARY_TYPES:
-                            case DEFAULT:
-                                g.setColor(chunk.get().getTopRockType().mColor);
-                                break;
-                        
-                            case DISTINCT_COLORS:
-                                g.setColor(Color.getHSBColor(counter / (float) regions.size(), 1.0f, 1.0f));
-                                break;
-
-                            default:
-                                break;
-                        }
-
-                        final Point wrapped = sim.getWrappedBox().wrap(location);
-
-                        g.drawLine(wrapped.x, wrapped.y, wrapped.x, wrapped.y);
-                    }
-                }
+    /**
+     * Extracts a cross section along the current line in the background, unless one is
+     * already waiting to. It reads the simulation, so it has to wait for a tick in
+     * progress, but on mInspectExecutor rather than the frame thread.
+     */
+    private void requestSection() {
+        if (!mSectionRequested.compareAndSet(false, true)) return;
+
+        mInspectExecutor.execute(() -> {
+            mSectionRequested.set(false);
+
+            if (!hasSim()) return;
+
+            final CrossSection section;
+
+            synchronized (mSimLock) {
+                section = extractSection(mTargetSim.get());
             }
 
-            ++counter;
-        }
+            publishSection(section);
+        });
+    }
 
-        if (mDisplayMode == SimulationRenderMode.BOUNDARIES) {
-            for (final Region region : sim.getRegions()) {
-                for (final Point point : region.getBoundary()) {
-                    final Point location = 
-                        sim.getWrappedBox().wrap(Vec.sum(region.getPosition(), Vec.extend(point)).truncate());
+    /**
+     * Inspects the hovered cell in the background, unless an inspection is already
+     * waiting to. Inspections start HOVER_INTERVAL_MS after they are requested, so moving
+     * the mouse inspects at most once per display frame, however many events it sends.
+     * Like requestSection, it waits for a tick in progress on mInspectExecutor.
+     */
+    private void requestHover() {
+        if (!mHoverRequested.compareAndSet(false, true)) return;
 
-                    g.setColor(Color.MAGENTA);
-                    g.drawLine(location.x, location.y, location.x, location.y);
-                }
+        mInspectExecutor.schedule(() -> {
+            mHoverRequested.set(false);
+
+            if (!hasSim()) return;
+
+            final Point hoverCell = mHoverCell;
+            final CellInfo info;
+
+            synchronized (mSimLock) {
+                info = inspectHover(mTargetSim.get(), hoverCell);
             }
+
+            publishHover(hoverCell, info);
+        }, HOVER_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Note: Only call while holding mSimLock.
+     * @param sim the simulation
+     * @param hoverCell the hovered cell, or null for none
+     * @return what is known about the cell, null if there is no cell or nobody to tell
+     *         about it
+     */
+    private CellInfo inspectHover(final Simulation sim, final Point hoverCell) {
+        if (hoverCell == null || mHoverListener == null) return null;
+        else return sim.inspect(hoverCell);
+    }
+
+    /**
+     * @param hoverCell the hovered cell the info is about, or null for none
+     * @param info the info to tell the listener about
+     */
+    private void publishHover(final Point hoverCell, final CellInfo info) {
+        final Consumer<CellInfo> listener = mHoverListener;
+
+        if (listener != null && (info != null || hoverCell == null)) {
+            SwingUtilities.invokeLater(() -> listener.accept(info));
         }
+    }
 
-        if (mDisplayMode == SimulationRenderMode.BOUNDARY_TYPES) {
-            for (final Region region : sim.getRegions()) {
-                for (final Pair<Point, Region.BoundaryType> pair : sim.getClassifiedBoundary(region)) {
-                    switch(pair.second) {
-                        case CONVERGENT:
-                            g.setColor(Color.GREEN);
-                            break;
-
-                        case DIVERGENT:
-                            g.setColor(Color.RED);
-                            break;
-
-                        case TRANSFORM:
-                            g.setColor(Color.YELLOW);
-                            break;
-
-                        case STATIONARY:
-                            g.setColor(Color.MAGENTA);
-                            break;
-                    }
-
-                    final Point location =
-                        sim.getWrappedBox().wrap(Vec.sum(region.getPosition(), Vec.extend(pair.first)).truncate());
-                    g.drawLine(location.x, location.y, location.x, location.y);
-                }
+    /**
+     * Note: Only call while holding mSimLock.
+     * @param sim the simulation
+     * @return the cross section along the current line, null if there is no line or
+     *         nobody to tell about it
+     */
+    private CrossSection extractSection(final Simulation sim) {
+        final Point[] line = mSectionLine;
+
+        if (line == null || mSectionListener == null) return null;
+        else return sim.getCrossSection(line[0], line[1]);
+    }
 
-                final Vec centroid = region.getCentroid();
-                region.getVelocity().paint(g, Color.ORANGE, 150f, centroid.truncate());
-            }
+    /**
+     * @param section a cross section to tell the listener about, or null for none
+     */
+    private void publishSection(final CrossSection section) {
+        final Consumer<CrossSection> listener = mSectionListener;
+
+        if (section != null && listener != null) {
+            SwingUtilities.invokeLater(() -> listener.accept(section));
         }
-    
-        if (mDisplayMode == SimulationRenderMode.DISTANCE_GRAPH) {
-            final Graph<Region, Pair<Boolean, Float>> graph = sim.getGraph();
+    }
+
+    /**
+     * @param pixel a pixel of the panel
+     * @return the (unwrapped) cell of the world shown at the pixel
+     */
+    private Point toWorld(final Point pixel) {
+        final Viewport view = mView;
 
-            final List<Region> nodes = graph.getNodes();
-            final Collection<Pair<Integer, Integer>> edges = graph.getEdges();
+        return new Point(
+            (int) Math.floor(view.getX() + pixel.x / view.getScale()),
+            (int) Math.floor(view.getY() + pixel.y / view.getScale()));
+    }
 
-            g.setColor(Color.CYAN);
+    /**
+     * Repaints some areas of the panel.
+     * @param damage the areas, or null to repaint everything
+     */
+    private void repaint(final List<Rectangle> damage) {
+        if (damage == null) {
+            repaint();
+            return;
+        }
+
+        for (final Rectangle area : damage) {
+            repaint(area.x, area.y, area.width, area.height);
+        }
+    }
 
-            for (final Pair<Integer, Integer> edge : edges) {
-                final Region r1 = nodes.get(edge.first);
-                final Region r2 = nodes.get(edge.second);
+    /**
+     * Only blits the last frame produced; rendering happens in update and requestFrame.
+     */
+    @Override
+    public void paint(Graphics g) {
+        super.paint(g);
+        mFrames.draw(g);
 
-                final Point c1 = r1.getCentroid().truncate();
-                final Point c2 = r2.getCentroid().truncate();
+        final Point[] line = mSectionLine;
 
-                final Optional<Point> c0 = sim.getWrappedBox().getNonWrappedDuplicates(c2).stream().min((a, b) -> {
-                    return Float.compare(Util.distance(a, c1), Util.distance(b, c1));
-                });
+        if (line != null) {
+            final Viewport view = mView;
+            final double scale = view.getScale();
 
-                g.drawLine(c0.get().x, c0.get().y, c1.x, c1.y);
-            }
+            g.setColor(Color.WHITE);
+            g.drawLine(
+                (int) ((line[0].x + 0.5 - view.getX()) * scale), (int) ((line[0].y + 0.5 - view.getY()) * scale),
+                (int) ((line[1].x + 0.5 - view.getX()) * scale), (int) ((line[1].y + 0.5 - view.getY()) * scale));
         }
     }
 }
@@ -20,6 +20,10 @@ public class TectonicSim extends JFrame {
     
     private final SimulationPanel mSimPanel;
 
+    private final CrossSectionViewer mSectionViewer;
+
+    private final CellInspector mInspector;
+
     private final JPanel mControlPanel;
 
     private boolean mIsRunning = false;
@@ -40,6 +44,14 @@ public class TectonicSim extends JFrame {
         mSimPanel = new SimulationPanel(width, height);
         mSimPanel.setSim(sim);
 
+        // Right-drag on the world to cut a cross section
+        mSectionViewer = new CrossSectionViewer();
+        mSimPanel.setSectionListener(mSectionViewer::setSection);
+
+        // Hover over the world to inspect a cell
+        mInspector = new CellInspector();
+        mSimPanel.setHoverListener(mInspector::setInfo);
+
         final JComboBox<SimulationPanel.SimulationRenderMode> renderModeBox =
             new JComboBox<>(SimulationPanel.SimulationRenderMode.values());
         renderModeBox.setAction(new AbstractAction() {
@@ -100,12 +112,14 @@ public class TectonicSim extends JFrame {
         mControlPanel.add(restartButton);
         mControlPanel.add(tickLabel);
         mControlPanel.add(playButton);
+        mControlPanel.add(mInspector);
 
 
         setLayout(new BorderLayout());
 
         add(mSimPanel, BorderLayout.CENTER);
         add(mControlPanel, BorderLayout.WEST);
+        add(mSectionViewer, BorderLayout.SOUTH);
         pack();
         repaint();
         setVisible(true);
@@ -0,0 +1,145 @@
+package com.tectonics.gui;
+
+/**
+ * <p>The part of a (wrapped) world shown on screen: the world position at the top left
+ * pixel, the zoom and the size of the view in pixels. A view at zoom z shows 2^z pixels
+ * per cell, so cells are magnified for positive zooms and levels of the raster pyramid
+ * are shown for negative ones, level -z at one pixel per cell.</p>
+ *
+ * <p>Viewports are immutable, so one can be handed from the event dispatch thread to the
+ * thread rendering it without locking.</p>
+ */
+public final class Viewport {
+
+    /**
+     * The highest zoom, at 2^MAX_ZOOM pixels per cell
+     */
+    public static final int MAX_ZOOM = 4;
+
+    /**
+     * The world position at the top left pixel, in cells
+     */
+    private final double mX;
+    private final double mY;
+
+    private final int mZoom;
+
+    /**
+     * The size of the view in pixels
+     */
+    private final int mWidth;
+    private final int mHeight;
+
+    /**
+     * @param x the x coordinate of the world at the top left pixel
+     * @param y the y coordinate of the world at the top left pixel
+     * @param zoom the zoom, at most MAX_ZOOM
+     * @param width the width of the view in pixels
+     * @param height the height of the view in pixels
+     */
+    public Viewport(final double x, final double y, final int zoom, final int width, final int height) {
+        assert zoom <= MAX_ZOOM;
+
+        mX = x;
+        mY = y;
+        mZoom = zoom;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public double getX() {
+        return mX;
+    }
+
+    public double getY() {
+        return mY;
+    }
+
+    public int getZoom() {
+        return mZoom;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return the pyramid level the view shows
+     */
+    public int getLevel() {
+        return Math.max(0, -mZoom);
+    }
+
+    /**
+     * @return the number of pixels across a cell of the level the view shows
+     */
+    public int getPixelsPerCell() {
+        return 1 << Math.max(0, mZoom);
+    }
+
+    /**
+     * @return the number of pixels across a cell of the world
+     */
+    public double getScale() {
+        return Math.scalb(1.0, mZoom);
+    }
+
+    /**
+     * @param width the new width of the view in pixels
+     * @param height the new height of the view in pixels
+     * @return this view with another size, keeping the world at the top left pixel
+     */
+    public Viewport resize(final int width, final int height) {
+        return new Viewport(mX, mY, mZoom, width, height);
+    }
+
+    /**
+     * @param dx the distance to drag the world to the right, in pixels
+     * @param dy the distance to drag the world down, in pixels
+     * @return this view with the world dragged by a distance
+     */
+    public Viewport pan(final int dx, final int dy) {
+        return new Viewport(mX - dx / getScale(), mY - dy / getScale(), mZoom, mWidth, mHeight);
+    }
+
+    /**
+     * Zooms in or out around a pixel, which keeps showing the same part of the world.
+     * @param steps the number of times to double the zoom, negative to zoom out
+     * @param px the x coordinate of the pixel
+     * @param py the y coordinate of the pixel
+     * @param minZoom the lowest zoom allowed
+     * @return the zoomed view
+     */
+    public Viewport zoom(final int steps, final int px, final int py, final int minZoom) {
+        final int zoom = Math.max(minZoom, Math.min(MAX_ZOOM, mZoom + steps));
+        final double scale = Math.scalb(1.0, zoom);
+        final double worldX = mX + px / getScale();
+        final double worldY = mY + py / getScale();
+
+        return new Viewport(worldX - px / scale, worldY - py / scale, zoom, mWidth, mHeight);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (obj instanceof Viewport) {
+            final Viewport v = (Viewport) obj;
+            return mX == v.mX && mY == v.mY && mZoom == v.mZoom && mWidth == v.mWidth && mHeight == v.mHeight;
+        }
+
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return (((Double.hashCode(mX) * 97 + Double.hashCode(mY)) * 97 + mZoom) * 97 + mWidth) * 97 + mHeight;
+    }
+
+    @Override
+    public String toString() {
+        return "Viewport(" + mX + ", " + mY + ", " + mZoom + ", " + mWidth + "x" + mHeight + ")";
+    }
+}
@@ -0,0 +1,543 @@
+package com.tectonics.gui;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import com.tectonics.gui.SimulationPanel.SimulationRenderMode;
+import com.tectonics.plates.RasterPyramid;
+import com.tectonics.plates.Region;
+import com.tectonics.plates.WorldRaster;
+
+/**
+ * <p>Renders the part of a world in a viewport into an image the size of the view.
+ * The cells are read from the level of the raster pyramid the view shows, one per pixel
+ * (or per square of pixels when zoomed in past level 0), and written as packed ARGB
+ * straight into the image's backing array, so the cost of a render depends on the size
+ * of the view and not on the size of the world. Empty cells are left transparent.</p>
+ *
+ * <p>The image is kept between renders, and while the view stays the same only the tiles
+ * of the image showing tiles of the world raster that changed since the last render are
+ * drawn again. Everything is drawn again when the view, mode or simulation changes, when
+ * the elevation range of the height map changes, and when regions come or go while each
+ * region has its own color.</p>
+ *
+ * <p>Tiles are drawn in parallel on the common fork-join pool, each writing its own rows
+ * of the pixel array. The boundary modes are composited into the cells of each tile as
+ * it is drawn.</p>
+ *
+ * <p>Resizing the view without moving or zooming it keeps the pixels both sizes have, so
+ * only the tiles that were not shown before are drawn.</p>
+ *
+ * <p>Overlays that are not per cell (velocities, the distance graph) are not part of the
+ * image. The Overlay of the mode is handed to render and drawn on top by paintOverlay.</p>
+ *
+ * <p>Cells are only read from the pyramid, never from the world raster or the simulation,
+ * so a copied pyramid (see RasterPyramid) can be rendered while the simulation goes on.</p>
+ */
+public class WorldRenderer {
+
+    /**
+     * The size of the tiles of the image that are drawn again together
+     */
+    private static final int VIEW_TILE_SIZE = 64;
+
+    /**
+     * The color of occupied cells under the distance graph
+     */
+    private static final int GRAPH_LAND = 0xFF333333;
+
+    private static final int BOUNDARY = Color.MAGENTA.getRGB();
+
+    /**
+     * The color of each boundary type, by ordinal
+     */
+    private static final int[] BOUNDARY_TYPE_COLORS = new int[Region.BoundaryType.values().length];
+
+    static {
+        BOUNDARY_TYPE_COLORS[Region.BoundaryType.CONVERGENT.ordinal()] = Color.GREEN.getRGB();
+        BOUNDARY_TYPE_COLORS[Region.BoundaryType.DIVERGENT.ordinal()] = Color.RED.getRGB();
+        BOUNDARY_TYPE_COLORS[Region.BoundaryType.TRANSFORM.ordinal()] = Color.YELLOW.getRGB();
+        BOUNDARY_TYPE_COLORS[Region.BoundaryType.STATIONARY.ordinal()] = Color.MAGENTA.getRGB();
+    }
+
+    /**
+     * The image rendered into and its backing array
+     */
+    private BufferedImage mImage = null;
+    private int[] mPixels = null;
+
+    /**
+     * What the image shows: the raster, mode and view it was rendered from and the
+     * raster's change count the pyramid was up to date with
+     */
+    private WorldRaster mRaster = null;
+    private SimulationRenderMode mMode = null;
+    private Viewport mView = null;
+    private long mChangeCount = 0L;
+
+    /**
+     * The (wrapped) column and row of the shown level under each column and row of pixels
+     */
+    private int[] mColumns = new int[0];
+    private int[] mRows = new int[0];
+
+    /**
+     * The elevation range of the occupied cells of each tile, and of all of them when the
+     * height map was rendered
+     */
+    private float[] mTileMaxElevation = new float[0];
+    private float[] mTileMinElevation = new float[0];
+    private float mMaxElevation = Float.NaN;
+    private float mMinElevation = Float.NaN;
+
+    /**
+     * The color of each region by id plus one and the region list they were picked for
+     */
+    private int[] mRegionColors = new int[0];
+    private List<Region> mColoredRegions = null;
+
+    /**
+     * The overlay of the last render
+     */
+    private Overlay mOverlay = Overlay.EMPTY;
+
+    /**
+     * Brings the image up to date with a raster pyramid.
+     * Note: The pyramid must not be updated while it is rendered.
+     * @param regions the regions the pyramid shows, as returned by Simulation.getRegions
+     * @param mode what to show
+     * @param pyramid the raster pyramid of the world
+     * @param view the part of the world to show
+     * @param overlay the overlay of the mode, drawn over the image by paintOverlay
+     * @return the areas of the image that were drawn again
+     */
+    public List<Rectangle> render(
+        final List<Region> regions,
+        final SimulationRenderMode mode,
+        final RasterPyramid pyramid,
+        final Viewport view,
+        final Overlay overlay) {
+
+        final WorldRaster raster = pyramid.getRaster();
+        final int width = Math.max(1, view.getWidth());
+        final int height = Math.max(1, view.getHeight());
+        final int tileCount = raster.getTilesX() * raster.getTilesY();
+
+        final boolean reset = raster != mRaster || mode != mMode;
+
+        // A view that was only resized shows the same world at the pixels both sizes have
+        final boolean resized = !reset && mView != null && !view.equals(mView)
+            && view.getX() == mView.getX() && view.getY() == mView.getY() && view.getZoom() == mView.getZoom();
+
+        boolean full = reset || (!view.equals(mView) && !resized);
+        int keptWidth = width;
+        int keptHeight = height;
+
+        if (mImage == null || mImage.getWidth() != width || mImage.getHeight() != height) {
+            final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            final int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+
+            if (resized) {
+                keptWidth = Math.min(width, mImage.getWidth());
+                keptHeight = Math.min(height, mImage.getHeight());
+
+                for (int y = 0; y < keptHeight; ++y) {
+                    System.arraycopy(mPixels, y * mImage.getWidth(), pixels, y * width, keptWidth);
+                }
+            } else {
+                full = true;
+            }
+
+            mImage = image;
+            mPixels = pixels;
+        }
+
+        final boolean[] changed = new boolean[tileCount];
+
+        for (int tile = 0; tile < tileCount; ++tile) {
+            changed[tile] = reset || pyramid.getTileChange(tile) > mChangeCount;
+        }
+
+        if (mode == SimulationRenderMode.HEIGHT_MAP) {
+            full |= updateElevationRange(pyramid, changed);
+        }
+
+        if (mode == SimulationRenderMode.DISTINCT_COLORS) {
+            full |= updateRegionColors(regions);
+        }
+
+        if (full || resized) {
+            mColumns = getCells(view.getX(), view.getLevel(), view.getPixelsPerCell(), width, pyramid.getWidth(view.getLevel()));
+            mRows = getCells(view.getY(), view.getLevel(), view.getPixelsPerCell(), height, pyramid.getHeight(view.getLevel()));
+        }
+
+        final List<Rectangle> damage = full
+            ? getViewTiles(null)
+            : getDamage(raster, view.getLevel(), changed, keptWidth, keptHeight);
+
+        // Tiles cover disjoint spans of the pixel array
+        damage.parallelStream().forEach(bounds -> renderTile(pyramid, view.getLevel(), mode, bounds));
+
+        mRaster = raster;
+        mMode = mode;
+        mView = view;
+        mChangeCount = pyramid.getChangeCount();
+        mOverlay = overlay;
+
+        return damage;
+    }
+
+    /**
+     * @return the image of the last render (null before the first one)
+     */
+    public BufferedImage getImage() {
+        return mImage;
+    }
+
+    /**
+     * @return the mode of the last render (null before the first one)
+     */
+    public SimulationRenderMode getMode() {
+        return mMode;
+    }
+
+    /**
+     * @return the view of the last render (null before the first one)
+     */
+    public Viewport getView() {
+        return mView;
+    }
+
+    /**
+     * @return the overlay of the last render
+     */
+    public Overlay getOverlay() {
+        return mOverlay;
+    }
+
+    /**
+     * @return whether the last render has an overlay to draw
+     */
+    public boolean hasOverlay() {
+        return !mOverlay.isEmpty();
+    }
+
+    /**
+     * Draws the overlay of the last render over every copy of the wrapped world in the
+     * view.
+     * @param g the graphics to draw with
+     */
+    public void paintOverlay(final Graphics g) {
+        if (!hasOverlay()) return;
+
+        final Graphics2D g2 = (Graphics2D) g.create();
+        final double scale = mView.getScale();
+        final int worldWidth = mRaster.getWrappedBox().getWidth();
+        final int worldHeight = mRaster.getWrappedBox().getHeight();
+
+        // Arrows and lines may reach past the edges of their copy
+        final int firstX = (int) Math.floor(mView.getX() / worldWidth) - 1;
+        final int lastX = (int) Math.floor((mView.getX() + mView.getWidth() / scale) / worldWidth) + 1;
+        final int firstY = (int) Math.floor(mView.getY() / worldHeight) - 1;
+        final int lastY = (int) Math.floor((mView.getY() + mView.getHeight() / scale) / worldHeight) + 1;
+
+        g2.scale(scale, scale);
+        g2.translate(-mView.getX(), -mView.getY());
+
+        final AffineTransform transform = g2.getTransform();
+
+        for (int copyY = firstY; copyY <= lastY; ++copyY) {
+            for (int copyX = firstX; copyX <= lastX; ++copyX) {
+                g2.setTransform(transform);
+                g2.translate(copyX * worldWidth, copyY * worldHeight);
+                mOverlay.paint(g2);
+            }
+        }
+
+        g2.dispose();
+    }
+
+    /**
+     * @param raster the world raster
+     * @param tile a tile index
+     * @return the cells of the tile, clipped to the world
+     */
+    private static Rectangle getTileBounds(final WorldRaster raster, final int tile) {
+        final int x0 = (tile % raster.getTilesX()) * WorldRaster.TILE_SIZE;
+        final int y0 = (tile / raster.getTilesX()) * WorldRaster.TILE_SIZE;
+
+        return new Rectangle(
+            x0, y0,
+            Math.min(WorldRaster.TILE_SIZE, raster.getWrappedBox().getWidth() - x0),
+            Math.min(WorldRaster.TILE_SIZE, raster.getWrappedBox().getHeight() - y0));
+    }
+
+    /**
+     * Maps the pixels along one axis of a view to the cells of a level under them.
+     * @param origin the world coordinate at the first pixel
+     * @param level the level shown
+     * @param pixelsPerCell the number of pixels across a cell of the level
+     * @param pixels the number of pixels
+     * @param cells the number of cells of the level along the axis
+     * @return the wrapped cell under each pixel
+     */
+    private static int[] getCells(final double origin, final int level, final int pixelsPerCell, final int pixels, final int cells) {
+        final double first = Math.scalb(origin, -level);
+        final int[] mapped = new int[pixels];
+
+        for (int p = 0; p < pixels; ++p) {
+            mapped[p] = (int) Math.floorMod((long) Math.floor(first + p / (double) pixelsPerCell), (long) cells);
+        }
+
+        return mapped;
+    }
+
+    /**
+     * @param damaged which tiles of the image to list, by row major index, or null for all
+     * @return the pixels of the listed tiles of the image, clipped to the image
+     */
+    private List<Rectangle> getViewTiles(final BitSet damaged) {
+        final int width = mImage.getWidth();
+        final int height = mImage.getHeight();
+        final int tilesX = (width + VIEW_TILE_SIZE - 1) / VIEW_TILE_SIZE;
+        final int tilesY = (height + VIEW_TILE_SIZE - 1) / VIEW_TILE_SIZE;
+        final List<Rectangle> tiles = new ArrayList<>();
+
+        for (int tile = 0; tile < tilesX * tilesY; ++tile) {
+            if (damaged != null && !damaged.get(tile)) continue;
+
+            final int x0 = (tile % tilesX) * VIEW_TILE_SIZE;
+            final int y0 = (tile / tilesX) * VIEW_TILE_SIZE;
+
+            tiles.add(new Rectangle(x0, y0, Math.min(VIEW_TILE_SIZE, width - x0), Math.min(VIEW_TILE_SIZE, height - y0)));
+        }
+
+        return tiles;
+    }
+
+    /**
+     * Finds the tiles of the image showing changed tiles of the world raster, and those
+     * not entirely kept from the last render.
+     * @param raster the world raster
+     * @param level the level shown
+     * @param changed whether each tile of the world raster changed
+     * @param keptWidth the width of the part of the image kept from the last render
+     * @param keptHeight the height of the part of the image kept from the last render
+     * @return the pixels of the tiles of the image to draw again
+     */
+    private List<Rectangle> getDamage(
+        final WorldRaster raster,
+        final int level,
+        final boolean[] changed,
+        final int keptWidth,
+        final int keptHeight) {
+
+        final BitSet[] viewColumns = getViewTiles(mColumns, level, raster.getTilesX(), raster.getWrappedBox().getWidth());
+        final BitSet[] viewRows = getViewTiles(mRows, level, raster.getTilesY(), raster.getWrappedBox().getHeight());
+        final int viewTilesX = (mImage.getWidth() + VIEW_TILE_SIZE - 1) / VIEW_TILE_SIZE;
+        final int viewTilesY = (mImage.getHeight() + VIEW_TILE_SIZE - 1) / VIEW_TILE_SIZE;
+        final BitSet damaged = new BitSet();
+
+        for (int row = 0; row < viewTilesY; ++row) {
+            for (int column = 0; column < viewTilesX; ++column) {
+                final int right = Math.min((column + 1) * VIEW_TILE_SIZE, mImage.getWidth());
+                final int bottom = Math.min((row + 1) * VIEW_TILE_SIZE, mImage.getHeight());
+
+                if (right > keptWidth || bottom > keptHeight) {
+                    damaged.set(row * viewTilesX + column);
+                }
+            }
+        }
+
+        for (int tile = 0; tile < changed.length; ++tile) {
+            if (!changed[tile]) continue;
+
+            final BitSet columns = viewColumns[tile % raster.getTilesX()];
+            final BitSet rows = viewRows[tile / raster.getTilesX()];
+
+            for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+                for (int column = columns.nextSetBit(0); column >= 0; column = columns.nextSetBit(column + 1)) {
+                    damaged.set(row * viewTilesX + column);
+                }
+            }
+        }
+
+        return getViewTiles(damaged);
+    }
+
+    /**
+     * Inverts the mapping of pixels to cells along one axis at the granularity of tiles.
+     * @param cells the cell of the level under each pixel
+     * @param level the level shown
+     * @param tileCount the number of tiles of the world raster along the axis
+     * @param worldSize the number of cells of the world along the axis
+     * @return for each tile of the world raster, the tiles of the image showing any of it
+     */
+    private static BitSet[] getViewTiles(final int[] cells, final int level, final int tileCount, final int worldSize) {
+        final BitSet[] viewTiles = new BitSet[tileCount];
+
+        for (int tile = 0; tile < tileCount; ++tile) {
+            viewTiles[tile] = new BitSet();
+        }
+
+        for (int p = 0; p < cells.length; ++p) {
+            // A cell of the level covers 2^level cells of the world
+            final int first = (cells[p] << level) / WorldRaster.TILE_SIZE;
+            final int last = (Math.min((cells[p] + 1) << level, worldSize) - 1) / WorldRaster.TILE_SIZE;
+
+            for (int tile = first; tile <= last; ++tile) {
+                viewTiles[tile].set(p / VIEW_TILE_SIZE);
+            }
+        }
+
+        return viewTiles;
+    }
+
+    /**
+     * Draws the pixels of one tile of the image.
+     * @param pyramid the raster pyramid
+     * @param level the level shown
+     * @param mode what to show
+     * @param bounds the pixels of the tile
+     */
+    private void renderTile(final RasterPyramid pyramid, final int level, final SimulationRenderMode mode, final Rectangle bounds) {
+        final int width = mImage.getWidth();
+        final int levelWidth = pyramid.getWidth(level);
+        final int[] ids = pyramid.getRegionIds(level);
+        final byte[] topRocks = pyramid.getTopRocks(level);
+        final float[] elevations = pyramid.getElevations(level);
+        final byte[] boundaryTypes = pyramid.getBoundaryTypes(level);
+        final int[] heightRamp = Palette.getHeightRamp();
+        final int[] rockColors = Palette.getRockColors();
+        final int[] columns = mColumns;
+        final float minElevation = mMinElevation;
+        final float heightScale = Palette.getHeightScale(mMaxElevation, mMinElevation);
+
+        for (int y = bounds.y; y < bounds.y + bounds.height; ++y) {
+            final int row = mRows[y] * levelWidth;
+            final int from = y * width + bounds.x;
+            final int to = from + bounds.width;
+            final int offset = bounds.x - from;
+
+            switch (mode) {
+                case HEIGHT_MAP:
+                    for (int pixel = from; pixel < to; ++pixel) {
+                        final int index = row + columns[pixel + offset];
+
+                        mPixels[pixel] = ids[index] == WorldRaster.EMPTY
+                            ? 0
+                            : heightRamp[(int) ((elevations[index] - minElevation) * heightScale + 0.5f)];
+                    }
+                    break;
+
+                case DISTINCT_COLORS:
+                    for (int pixel = from; pixel < to; ++pixel) {
+                        mPixels[pixel] = mRegionColors[ids[row + columns[pixel + offset]] + 1];
+                    }
+                    break;
+
+                case DISTANCE_GRAPH:
+                    for (int pixel = from; pixel < to; ++pixel) {
+                        mPixels[pixel] = ids[row + columns[pixel + offset]] == WorldRaster.EMPTY ? 0 : GRAPH_LAND;
+                    }
+                    break;
+
+                default:
+                    for (int pixel = from; pixel < to; ++pixel) {
+                        mPixels[pixel] = rockColors[topRocks[row + columns[pixel + offset]] + 1];
+                    }
+                    break;
+            }
+
+            if (mode == SimulationRenderMode.BOUNDARIES || mode == SimulationRenderMode.BOUNDARY_TYPES) {
+                for (int pixel = from; pixel < to; ++pixel) {
+                    final byte code = boundaryTypes[row + columns[pixel + offset]];
+
+                    if (code == WorldRaster.NOT_BOUNDARY) continue;
+
+                    mPixels[pixel] = mode == SimulationRenderMode.BOUNDARIES
+                        ? BOUNDARY
+                        : BOUNDARY_TYPE_COLORS[code - 1];
+                }
+            }
+        }
+    }
+
+    /**
+     * Brings the elevation range of the changed tiles up to date and folds the ranges of
+     * all tiles into the range the height map is colored by.
+     * @param pyramid the raster pyramid
+     * @param changed whether each tile changed
+     * @return whether the overall range changed, in which case every cell must be drawn
+     *         again
+     */
+    private boolean updateElevationRange(final RasterPyramid pyramid, final boolean[] changed) {
+        final WorldRaster raster = pyramid.getRaster();
+        final int width = pyramid.getWidth(0);
+        final int[] ids = pyramid.getRegionIds(0);
+        final float[] elevations = pyramid.getElevations(0);
+
+        if (mTileMaxElevation.length != changed.length) {
+            mTileMaxElevation = new float[changed.length];
+            mTileMinElevation = new float[changed.length];
+            Arrays.fill(changed, true);
+        }
+
+        IntStream.range(0, changed.length).filter(tile -> changed[tile]).parallel().forEach(tile -> {
+            final Rectangle bounds = getTileBounds(raster, tile);
+            float tileMax = Float.NEGATIVE_INFINITY;
+            float tileMin = Float.POSITIVE_INFINITY;
+
+            for (int y = bounds.y; y < bounds.y + bounds.height; ++y) {
+                for (int index = y * width + bounds.x; index < y * width + bounds.x + bounds.width; ++index) {
+                    if (ids[index] == WorldRaster.EMPTY) continue;
+
+                    tileMax = Math.max(tileMax, elevations[index]);
+                    tileMin = Math.min(tileMin, elevations[index]);
+                }
+            }
+
+            mTileMaxElevation[tile] = tileMax;
+            mTileMinElevation[tile] = tileMin;
+        });
+
+        float maxElevation = Float.NEGATIVE_INFINITY;
+        float minElevation = Float.POSITIVE_INFINITY;
+
+        for (int tile = 0; tile < changed.length; ++tile) {
+            maxElevation = Math.max(maxElevation, mTileMaxElevation[tile]);
+            minElevation = Math.min(minElevation, mTileMinElevation[tile]);
+        }
+
+        final boolean rangeChanged = maxElevation != mMaxElevation || minElevation != mMinElevation;
+
+        mMaxElevation = maxElevation;
+        mMinElevation = minElevation;
+
+        return rangeChanged;
+    }
+
+    /**
+     * Picks the region colors for a list of regions, see Palette.getRegionColors.
+     * @param regions the live regions
+     * @return whether the colors changed, in which case every cell must be drawn again
+     */
+    private boolean updateRegionColors(final List<Region> regions) {
+        if (regions == mColoredRegions) return false;
+
+        mRegionColors = Palette.getRegionColors(regions);
+        mColoredRegions = regions;
+
+        return true;
+    }
+}
@@ -0,0 +1,102 @@
+package com.tectonics.plates;
+
+import java.awt.Point;
+import java.util.Optional;
+
+/**
+ * What is known about one cell of the world at a tick: the region and plate owning it,
+ * its elevation, how deep it is sunk into the mantle, its boundary type and its layers.
+ * Cell infos are immutable.
+ */
+public class CellInfo {
+
+    private final Point mCell;
+
+    private final int mRegionId;
+
+    private final int mPlateId;
+
+    private final float mElevation;
+
+    private final float mDepth;
+
+    private final Optional<Region.BoundaryType> mBoundaryType;
+
+    /**
+     * The layers of the cell, as a cross section of the cell alone
+     */
+    private final CrossSection mColumn;
+
+    /**
+     * @param cell the wrapped cell
+     * @param column the layers of the cell, as a cross section of the cell alone
+     */
+    public CellInfo(final Point cell, final CrossSection column) {
+        this(cell, WorldRaster.EMPTY, -1, 0f, 0f, Optional.empty(), column);
+    }
+
+    /**
+     * @param cell the wrapped cell
+     * @param regionId the id of the region owning the cell, WorldRaster.EMPTY if none
+     * @param plateId the id of the plate of the region, -1 if none
+     * @param elevation the elevation in meters, see WorldRaster.getElevation
+     * @param depth how deep the cell is sunk below the top of the mantle in meters
+     * @param boundaryType the boundary type of the cell, if it is on a boundary
+     * @param column the layers of the cell, as a cross section of the cell alone
+     */
+    public CellInfo(
+        final Point cell,
+        final int regionId,
+        final int plateId,
+        final float elevation,
+        final float depth,
+        final Optional<Region.BoundaryType> boundaryType,
+        final CrossSection column) {
+
+        mCell = new Point(cell);
+        mRegionId = regionId;
+        mPlateId = plateId;
+        mElevation = elevation;
+        mDepth = depth;
+        mBoundaryType = boundaryType;
+        mColumn = column;
+    }
+
+    public Point getCell() {
+        return new Point(mCell);
+    }
+
+    /**
+     * @return whether a region owns the cell
+     */
+    public boolean isOccupied() {
+        return mRegionId != WorldRaster.EMPTY;
+    }
+
+    public int getRegionId() {
+        return mRegionId;
+    }
+
+    public int getPlateId() {
+        return mPlateId;
+    }
+
+    public float getElevation() {
+        return mElevation;
+    }
+
+    public float getDepth() {
+        return mDepth;
+    }
+
+    public Optional<Region.BoundaryType> getBoundaryType() {
+        return mBoundaryType;
+    }
+
+    /**
+     * @return the layers of the cell, as a cross section with a single column
+     */
+    public CrossSection getColumn() {
+        return mColumn;
+    }
+}
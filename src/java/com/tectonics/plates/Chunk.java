@@ -334,6 +334,21 @@ public class Chunk {
         else return mLayers.stream().collect(Collectors.toList());
     }
 
+    /**
+     * @return the number of layers
+     */
+    public int getLayerCount() {
+        return mLayers.size();
+    }
+
+    /**
+     * @param index the index of a layer, from 0 at the bottom
+     * @return the layer, without copying the layers as getLayers does
+     */
+    public Layer getLayer(final int index) {
+        return mLayers.get(index);
+    }
+
     /**
      * @param chunk the chunk to determine the depth it sinks
      * @param mantleDensity the mantle density in kg m^-3
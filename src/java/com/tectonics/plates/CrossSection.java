@@ -0,0 +1,289 @@
+package com.tectonics.plates;
+
+import java.awt.Point;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import com.tectonics.util.Util;
+import com.tectonics.util.Vec;
+import com.tectonics.util.WrappedBox;
+
+/**
+ * <p>The rock along a line through the world, one column per cell the line crosses.</p>
+ *
+ * <p>The layers of all columns are kept in flat arrays, bottom up within each column and
+ * column after column; the layers of column c are those from getLayerStart(c) to
+ * getLayerStart(c + 1). Each layer has a rock type, a bottom and a top. The tops are the
+ * bottom of the column plus the prefix sums of the thicknesses of the column's layers, so
+ * the top of the last layer of a column is its surface. Heights are in meters, with the
+ * same datum as the elevations of WorldRaster.</p>
+ *
+ * <p>Cross sections are immutable.</p>
+ */
+public class CrossSection {
+
+    /**
+     * The rock type code of a layer without a rock type (e.g. a fault)
+     */
+    public static final byte NO_ROCK = -1;
+
+    /**
+     * The wrapped cell of each column
+     */
+    private final Point[] mCells;
+
+    /**
+     * The region id of each column, WorldRaster.EMPTY where no region is
+     */
+    private final int[] mRegionIds;
+
+    /**
+     * The index of the first layer of each column, and the number of layers last
+     */
+    private final int[] mLayerStarts;
+
+    /**
+     * The rock type code (ordinal or NO_ROCK), bottom and top of each layer
+     */
+    private final byte[] mRockTypes;
+    private final float[] mBottoms;
+    private final float[] mTops;
+
+    private final float mMinBottom;
+    private final float mMaxTop;
+
+    private CrossSection(
+        final Point[] cells,
+        final int[] regionIds,
+        final int[] layerStarts,
+        final byte[] rockTypes,
+        final float[] bottoms,
+        final float[] tops) {
+
+        mCells = cells;
+        mRegionIds = regionIds;
+        mLayerStarts = layerStarts;
+        mRockTypes = rockTypes;
+        mBottoms = bottoms;
+        mTops = tops;
+
+        float minBottom = 0f;
+        float maxTop = 0f;
+
+        for (int layer = 0; layer < tops.length; ++layer) {
+            minBottom = Math.min(minBottom, bottoms[layer]);
+            maxTop = Math.max(maxTop, tops[layer]);
+        }
+
+        mMinBottom = minBottom;
+        mMaxTop = maxTop;
+    }
+
+    /**
+     * Extracts the cross section along a line. The line takes the shorter way around the
+     * wrapped world, and each cell it crosses is looked up in the world raster, so the cost
+     * is the number of layers along the line.
+     * @param raster the world raster, up to date with the regions
+     * @param regions the regions indexed by id, with null for removed ids
+     * @param from the cell the line starts at
+     * @param to the cell the line ends at
+     * @return the cross section from from to to
+     */
+    public static CrossSection extract(
+        final WorldRaster raster,
+        final List<Region> regions,
+        final Point from,
+        final Point to) {
+
+        final WrappedBox wrappedBox = raster.getWrappedBox();
+        final Point start = wrappedBox.wrap(from);
+        final Point delta = wrappedBox.displacement(start, to);
+        final List<Point> line = Util.getLine(new Vec(start.x, start.y), new Vec(start.x + delta.x, start.y + delta.y));
+
+        final Point[] cells = new Point[line.size()];
+        final int[] regionIds = new int[line.size()];
+        final Chunk[] chunks = new Chunk[line.size()];
+        final float[] bases = new float[line.size()];
+        final int[] layerStarts = new int[line.size() + 1];
+
+        for (int column = 0; column < line.size(); ++column) {
+            final Point cell = wrappedBox.wrap(line.get(column));
+            final int id = raster.getRegionId(cell);
+
+            cells[column] = cell;
+            regionIds[column] = id;
+            layerStarts[column + 1] = layerStarts[column];
+
+            if (id == WorldRaster.EMPTY || id >= regions.size() || regions.get(id) == null) continue;
+
+            final Region region = regions.get(id);
+            final Point origin = region.toGlobal(new Point());
+            final int localX = Math.floorMod(cell.x - origin.x, wrappedBox.getWidth());
+            final int localY = Math.floorMod(cell.y - origin.y, wrappedBox.getHeight());
+            final Optional<Chunk> chunk = region.getChunkAt(localX, localY);
+
+            if (chunk.isEmpty()) continue;
+
+            chunks[column] = chunk.get();
+            bases[column] = -region.getDepthAt(localX, localY) - region.getLift();
+            layerStarts[column + 1] += chunk.get().getLayerCount();
+        }
+
+        final int layerCount = layerStarts[line.size()];
+        final byte[] rockTypes = new byte[layerCount];
+        final float[] bottoms = new float[layerCount];
+        final float[] tops = new float[layerCount];
+
+        for (int column = 0; column < line.size(); ++column) {
+            if (chunks[column] != null) {
+                fillColumn(chunks[column], bases[column], layerStarts[column], rockTypes, bottoms, tops);
+            }
+        }
+
+        return new CrossSection(cells, regionIds, layerStarts, rockTypes, bottoms, tops);
+    }
+
+    /**
+     * Builds a cross section of loose chunks floating on the mantle, side by side.
+     * @param chunks the chunks, one per column
+     * @param mantleDensity the mantle density in kg m^-3
+     * @return the cross section, with the cells numbered along the x axis
+     */
+    public static CrossSection fromChunks(final List<Chunk> chunks, final float mantleDensity) {
+        final Point[] cells = new Point[chunks.size()];
+        final int[] regionIds = new int[chunks.size()];
+        final int[] layerStarts = new int[chunks.size() + 1];
+
+        for (int column = 0; column < chunks.size(); ++column) {
+            cells[column] = new Point(column, 0);
+            layerStarts[column + 1] = layerStarts[column] + chunks.get(column).getLayerCount();
+        }
+
+        Arrays.fill(regionIds, WorldRaster.EMPTY);
+
+        final int layerCount = layerStarts[chunks.size()];
+        final byte[] rockTypes = new byte[layerCount];
+        final float[] bottoms = new float[layerCount];
+        final float[] tops = new float[layerCount];
+
+        for (int column = 0; column < chunks.size(); ++column) {
+            final Chunk chunk = chunks.get(column);
+            final float base = -Chunk.depthSunk(chunk, mantleDensity).toMeters();
+
+            fillColumn(chunk, base, layerStarts[column], rockTypes, bottoms, tops);
+        }
+
+        return new CrossSection(cells, regionIds, layerStarts, rockTypes, bottoms, tops);
+    }
+
+    /**
+     * Writes the layers of a column, stacking them up from its base.
+     */
+    private static void fillColumn(
+        final Chunk chunk,
+        final float base,
+        final int start,
+        final byte[] rockTypes,
+        final float[] bottoms,
+        final float[] tops) {
+
+        float height = base;
+
+        for (int k = 0; k < chunk.getLayerCount(); ++k) {
+            final Chunk.Layer layer = chunk.getLayer(k);
+
+            rockTypes[start + k] = layer.mRockType == null ? NO_ROCK : (byte) layer.mRockType.ordinal();
+            bottoms[start + k] = height;
+            height += layer.getThickness().toMeters();
+            tops[start + k] = height;
+        }
+    }
+
+    /**
+     * @return the number of columns
+     */
+    public int getColumnCount() {
+        return mCells.length;
+    }
+
+    /**
+     * @param column a column
+     * @return the wrapped cell of the column
+     */
+    public Point getCell(final int column) {
+        return new Point(mCells[column]);
+    }
+
+    /**
+     * @param column a column
+     * @return the id of the region at the column, WorldRaster.EMPTY if none
+     */
+    public int getRegionId(final int column) {
+        return mRegionIds[column];
+    }
+
+    /**
+     * @param column a column, or the number of columns
+     * @return the index of the first layer of the column, or the number of layers
+     */
+    public int getLayerStart(final int column) {
+        return mLayerStarts[column];
+    }
+
+    /**
+     * @return the number of layers of all columns
+     */
+    public int getLayerCount() {
+        return mRockTypes.length;
+    }
+
+    /**
+     * @param layer a layer
+     * @return the rock type code of the layer, the ordinal of its rock type or NO_ROCK
+     */
+    public byte getRockType(final int layer) {
+        return mRockTypes[layer];
+    }
+
+    /**
+     * @param layer a layer
+     * @return the height of the bottom of the layer in meters
+     */
+    public float getBottom(final int layer) {
+        return mBottoms[layer];
+    }
+
+    /**
+     * @param layer a layer
+     * @return the height of the top of the layer in meters
+     */
+    public float getTop(final int layer) {
+        return mTops[layer];
+    }
+
+    /**
+     * @param column a column
+     * @return the total thickness of the layers of the column in meters
+     */
+    public float getThickness(final int column) {
+        final int start = mLayerStarts[column];
+        final int end = mLayerStarts[column + 1];
+
+        return end == start ? 0f : mTops[end - 1] - mBottoms[start];
+    }
+
+    /**
+     * @return the lowest bottom of any layer in meters, at most 0
+     */
+    public float getMinBottom() {
+        return mMinBottom;
+    }
+
+    /**
+     * @return the highest top of any layer in meters, at least 0
+     */
+    public float getMaxTop() {
+        return mMaxTop;
+    }
+}
@@ -0,0 +1,331 @@
+package com.tectonics.plates;
+
+import java.util.stream.IntStream;
+
+/**
+ * <p>A level of detail pyramid over a world raster. Level 0 is the raster itself and
+ * every further level halves the resolution, down to a level that is at most
+ * MIN_SIZE cells across. A cell of level L + 1 summarizes the (up to) 2x2 cells of
+ * level L below it: it takes the region, top rock and boundary code of the first
+ * occupied one (in row order) and the mean elevation of the occupied ones.</p>
+ *
+ * <p>update brings the pyramid up to date with the raster by rebuilding only the blocks
+ * above the raster tiles that changed since the last update, level by level.</p>
+ *
+ * <p>Level 0 is either the raster's own arrays or a copy of them. A copied pyramid is a
+ * snapshot of the raster at its last update (update copies the changed tiles), so it can
+ * be read while the raster goes on changing, as long as it is not updated meanwhile.</p>
+ */
+public class RasterPyramid {
+
+    /**
+     * The coarsest level is the first one at most this many cells across
+     */
+    public static final int MIN_SIZE = 128;
+
+    private final WorldRaster mRaster;
+
+    /**
+     * Whether level 0 is a copy of the raster rather than the raster itself
+     */
+    private final boolean mCopied;
+
+    private final int mLevelCount;
+
+    /**
+     * The size of each level
+     */
+    private final int[] mWidths;
+    private final int[] mHeights;
+
+    /**
+     * The rasters of each level, those of level 0 belonging to the world raster
+     */
+    private final int[][] mRegionIds;
+    private final byte[][] mTopRocks;
+    private final float[][] mElevations;
+    private final byte[][] mBoundaryTypes;
+
+    /**
+     * The change count of the world raster at the last update (-1 before the first)
+     */
+    private long mChangeCount = -1L;
+
+    /**
+     * The change count of the world raster when each tile last changed, as of the last
+     * update
+     */
+    private final long[] mTileChanges;
+
+    /**
+     * @param raster the world raster to summarize
+     */
+    public RasterPyramid(final WorldRaster raster) {
+        this(raster, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param raster the world raster to summarize
+     * @param maxLevelCount the most levels to keep (including level 0), e.g. 1 when only
+     *        the world raster itself is shown
+     */
+    public RasterPyramid(final WorldRaster raster, final int maxLevelCount) {
+        this(raster, maxLevelCount, false);
+    }
+
+    /**
+     * @param raster the world raster to summarize
+     * @param maxLevelCount the most levels to keep (including level 0), e.g. 1 when only
+     *        the world raster itself is shown
+     * @param copied whether level 0 is a copy of the raster, only brought up to date by
+     *        update, instead of the raster itself
+     */
+    public RasterPyramid(final WorldRaster raster, final int maxLevelCount, final boolean copied) {
+        mRaster = raster;
+        mCopied = copied;
+        mTileChanges = new long[raster.getTilesX() * raster.getTilesY()];
+
+        int levelCount = 1;
+        int width = raster.getWrappedBox().getWidth();
+        int height = raster.getWrappedBox().getHeight();
+
+        while (Math.max(width, height) > MIN_SIZE && levelCount < maxLevelCount) {
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+            ++levelCount;
+        }
+
+        mLevelCount = levelCount;
+        mWidths = new int[levelCount];
+        mHeights = new int[levelCount];
+        mRegionIds = new int[levelCount][];
+        mTopRocks = new byte[levelCount][];
+        mElevations = new float[levelCount][];
+        mBoundaryTypes = new byte[levelCount][];
+
+        mWidths[0] = raster.getWrappedBox().getWidth();
+        mHeights[0] = raster.getWrappedBox().getHeight();
+        if (copied) {
+            final int area = mWidths[0] * mHeights[0];
+            mRegionIds[0] = new int[area];
+            mTopRocks[0] = new byte[area];
+            mElevations[0] = new float[area];
+            mBoundaryTypes[0] = new byte[area];
+        } else {
+            mRegionIds[0] = raster.getRegionIds();
+            mTopRocks[0] = raster.getTopRocks();
+            mElevations[0] = raster.getElevations();
+            mBoundaryTypes[0] = raster.getBoundaryTypes();
+        }
+
+        for (int level = 1; level < levelCount; ++level) {
+            mWidths[level] = (mWidths[level - 1] + 1) / 2;
+            mHeights[level] = (mHeights[level - 1] + 1) / 2;
+
+            final int area = mWidths[level] * mHeights[level];
+            mRegionIds[level] = new int[area];
+            mTopRocks[level] = new byte[area];
+            mElevations[level] = new float[area];
+            mBoundaryTypes[level] = new byte[area];
+        }
+    }
+
+    /**
+     * @return the world raster the pyramid summarizes
+     */
+    public WorldRaster getRaster() {
+        return mRaster;
+    }
+
+    /**
+     * Rebuilds the parts of the pyramid above the raster tiles that changed since the
+     * last update (everything on the first update), after copying the tiles themselves
+     * if level 0 is a copy.
+     * Note: The raster must not change while it is updated from.
+     */
+    public void update() {
+        final int tilesX = mRaster.getTilesX();
+        final int[] changed = IntStream.range(0, tilesX * mRaster.getTilesY())
+            .filter(tile -> mRaster.getTileChange(tile) > mChangeCount)
+            .toArray();
+
+        mChangeCount = mRaster.getChangeCount();
+
+        for (final int tile : changed) {
+            mTileChanges[tile] = mRaster.getTileChange(tile);
+        }
+
+        if (changed.length == 0) return;
+
+        if (mCopied) {
+            IntStream.of(changed).parallel().forEach(this::copyTile);
+        }
+
+        for (int level = 1; level < mLevelCount; ++level) {
+            final int shift = level;
+
+            // Blocks of different tiles only overlap above level log2(TILE_SIZE), where
+            // rebuilding a cell twice gives the same result
+            IntStream.of(changed).parallel().forEach(tile -> {
+                final int x0 = (tile % tilesX) * WorldRaster.TILE_SIZE;
+                final int y0 = (tile / tilesX) * WorldRaster.TILE_SIZE;
+                final int x1 = Math.min(x0 + WorldRaster.TILE_SIZE, mWidths[0]);
+                final int y1 = Math.min(y0 + WorldRaster.TILE_SIZE, mHeights[0]);
+
+                for (int y = y0 >> shift; y <= (y1 - 1) >> shift; ++y) {
+                    for (int x = x0 >> shift; x <= (x1 - 1) >> shift; ++x) {
+                        summarize(shift, x, y);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Copies one tile of the world raster into level 0.
+     * @param tile a tile index
+     */
+    private void copyTile(final int tile) {
+        final int width = mWidths[0];
+        final int x0 = (tile % mRaster.getTilesX()) * WorldRaster.TILE_SIZE;
+        final int y0 = (tile / mRaster.getTilesX()) * WorldRaster.TILE_SIZE;
+        final int x1 = Math.min(x0 + WorldRaster.TILE_SIZE, width);
+        final int y1 = Math.min(y0 + WorldRaster.TILE_SIZE, mHeights[0]);
+
+        for (int y = y0; y < y1; ++y) {
+            final int from = y * width + x0;
+
+            System.arraycopy(mRaster.getRegionIds(), from, mRegionIds[0], from, x1 - x0);
+            System.arraycopy(mRaster.getTopRocks(), from, mTopRocks[0], from, x1 - x0);
+            System.arraycopy(mRaster.getElevations(), from, mElevations[0], from, x1 - x0);
+            System.arraycopy(mRaster.getBoundaryTypes(), from, mBoundaryTypes[0], from, x1 - x0);
+        }
+    }
+
+    /**
+     * Computes one cell of a level from the cells below it.
+     * @param level the level, at least 1
+     * @param x the x coordinate in the level
+     * @param y the y coordinate in the level
+     */
+    private void summarize(final int level, final int x, final int y) {
+        final int below = level - 1;
+        final int[] ids = mRegionIds[below];
+        final byte[] rocks = mTopRocks[below];
+        final float[] elevations = mElevations[below];
+        final byte[] boundaryTypes = mBoundaryTypes[below];
+
+        int id = WorldRaster.EMPTY;
+        byte rock = WorldRaster.NO_ROCK;
+        byte boundaryType = WorldRaster.NOT_BOUNDARY;
+        float elevation = 0f;
+        int occupied = 0;
+
+        for (int dy = 0; dy < 2; ++dy) {
+            final int by = 2 * y + dy;
+
+            if (by >= mHeights[below]) break;
+
+            for (int dx = 0; dx < 2; ++dx) {
+                final int bx = 2 * x + dx;
+
+                if (bx >= mWidths[below]) break;
+
+                final int index = by * mWidths[below] + bx;
+
+                if (ids[index] == WorldRaster.EMPTY) continue;
+
+                if (occupied++ == 0) {
+                    id = ids[index];
+                    rock = rocks[index];
+                }
+
+                if (boundaryType == WorldRaster.NOT_BOUNDARY) boundaryType = boundaryTypes[index];
+
+                elevation += elevations[index];
+            }
+        }
+
+        final int index = y * mWidths[level] + x;
+
+        mRegionIds[level][index] = id;
+        mTopRocks[level][index] = rock;
+        mElevations[level][index] = occupied == 0 ? 0f : elevation / occupied;
+        mBoundaryTypes[level][index] = boundaryType;
+    }
+
+    /**
+     * @return the change count of the world raster at the last update (-1 before the
+     *         first), see WorldRaster.getChangeCount
+     */
+    public long getChangeCount() {
+        return mChangeCount;
+    }
+
+    /**
+     * @param tile a tile index of the world raster
+     * @return the change count of the world raster when the tile last changed, as of the
+     *         last update
+     */
+    public long getTileChange(final int tile) {
+        return mTileChanges[tile];
+    }
+
+    /**
+     * @return the number of levels, including level 0
+     */
+    public int getLevelCount() {
+        return mLevelCount;
+    }
+
+    /**
+     * @param level a level
+     * @return the number of cells across the level
+     */
+    public int getWidth(final int level) {
+        return mWidths[level];
+    }
+
+    /**
+     * @param level a level
+     * @return the number of cells down the level
+     */
+    public int getHeight(final int level) {
+        return mHeights[level];
+    }
+
+    /**
+     * @param level a level
+     * @return the region id of every cell of the level, row major. Not to be modified.
+     *         Those of level 0 are the world raster's own unless the pyramid is copied,
+     *         and likewise for the other getters below.
+     */
+    public int[] getRegionIds(final int level) {
+        return mRegionIds[level];
+    }
+
+    /**
+     * @param level a level
+     * @return the top rock code of every cell of the level, row major. Not to be modified.
+     */
+    public byte[] getTopRocks(final int level) {
+        return mTopRocks[level];
+    }
+
+    /**
+     * Note: The global lift is not included, see WorldRaster.getLift.
+     * @param level a level
+     * @return the elevation of every cell of the level, row major. Not to be modified.
+     */
+    public float[] getElevations(final int level) {
+        return mElevations[level];
+    }
+
+    /**
+     * @param level a level
+     * @return the boundary code of every cell of the level, row major. Not to be modified.
+     */
+    public byte[] getBoundaryTypes(final int level) {
+        return mBoundaryTypes[level];
+    }
+}
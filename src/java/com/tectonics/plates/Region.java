@@ -4,16 +4,17 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.stream.Collectors;
-import java.awt.Color;
-import java.awt.Graphics;
 import java.awt.Point;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
 
 import javax.imageio.ImageIO;
 
 import com.tectonics.util.Vec;
+import com.tectonics.util.BitMask;
+import com.tectonics.util.FixedPoint;
 import com.tectonics.util.BoolArrayUtil;
 import com.tectonics.util.Pair;
 import com.tectonics.util.Util;
@@ -46,6 +47,16 @@ public class Region {
 
     private static final float DIVISION_RATIO = 0.003f;
 
+    /**
+     * The id of the region within its simulation.
+     */
+    private int mId = -1;
+
+    /**
+     * The id of the plate the region belongs to.
+     */
+    private int mPlateId = -1;
+
     /**
      * The x dimension of the region.
      */
@@ -57,26 +68,68 @@ public class Region {
     private int mHeight;
 
     /**
-     * The region's position.
+     * The region's position in fixed-point, see FixedPoint.
      */
-    private Vec mPosition;
+    private long mPositionX;
+    private long mPositionY;
 
     /**
-     * The region's velocity.
+     * The cell holding the region's position, i.e. the floor of the position. Local
+     * coordinates are relative to this cell.
      */
-    private Vec mVelocity = Vec.ZERO;
+    private int mCellX;
+    private int mCellY;
+
+    /**
+     * The region's velocity in fixed-point.
+     */
+    private long mVelocityX = 0L;
+    private long mVelocityY = 0L;
 
     /**
      * The chunks associated with this region.
      */
     private List<List<Optional<Chunk>>> mChunks;
 
+    /**
+     * The occupancy mask, with a set bit wherever a chunk is present.
+     */
+    private BitMask mOccupancy;
+
+    /**
+     * The number of occupied cells and the sums of x, y, x^2, y^2 and xy over them in
+     * local coordinates, kept up to date as chunks are set and removed
+     */
+    private long mCount = 0L;
+    private long mSumX  = 0L;
+    private long mSumY  = 0L;
+    private long mSumXX = 0L;
+    private long mSumYY = 0L;
+    private long mSumXY = 0L;
+
     /**
      * The height map for the region, specifying the chunk's height
      * below the "mantle" in meters.
      */
     private float[][] mHeightMap;
 
+    /**
+     * The amount the whole region has been lifted in meters since the height map was
+     * last evaluated.
+     */
+    private float mLift = 0f;
+
+    /**
+     * The displacement computed by the last evaluation of the height map in cubic kilometers.
+     */
+    private float mDisplacement = 0f;
+
+    /**
+     * Whether the region's chunks, shape or integer position changed since the flag was
+     * last cleared.
+     */
+    private boolean mDirty = true;
+
     /**
      * Creates a region of the specified size 
      * @param width the width
@@ -89,10 +142,11 @@ public class Region {
         mHeight = height;
         mWidth = width;
         
-        mPosition = position;
+        setFixedPosition(FixedPoint.fromFloat(position.x), FixedPoint.fromFloat(position.y));
 
         mChunks = new ArrayList<>(mHeight);
         mHeightMap = new float[height][width];
+        mOccupancy = new BitMask(width, height);
 
         for (int i = 0; i < mHeight; ++i) {
             List<Optional<Chunk>> row = new ArrayList<>(mWidth);
@@ -135,7 +189,7 @@ public class Region {
      * @return the same point in local coordinates
      */
     public Point toLocal(final Point global) {
-        return Util.subPoints(global, mPosition.truncate());
+        return new Point(global.x - mCellX, global.y - mCellY);
     }
 
     /**
@@ -143,7 +197,7 @@ public class Region {
      * @return the same point in global coordinates
      */
     public Point toGlobal(final Point local) {
-        return Util.sumPoints(local, mPosition.truncate());
+        return new Point(local.x + mCellX, local.y + mCellY);
     }
 
     /**
@@ -166,7 +220,7 @@ public class Region {
      * @return whether the region contains a chunk at (x, y)
      */
     public boolean contains(final int x, final int y) {
-        return getChunkAt(x, y).isPresent();
+        return mOccupancy.get(x, y);
     }
 
     /**
@@ -174,7 +228,7 @@ public class Region {
      * @return whether the region contains the point
      */
     public boolean contains(final Point local) {
-        return getChunkAt(local.x, local.y).isPresent();
+        return mOccupancy.get(local.x, local.y);
     }
 
     /**
@@ -233,6 +287,20 @@ public class Region {
                 .anyMatch(neighbor -> !contains(neighbor));
     }
 
+    /**
+     * @return the id of the region within its simulation
+     */
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     * @return the id of the plate the region belongs to
+     */
+    public int getPlateId() {
+        return mPlateId;
+    }
+
     /**
      * @return the local x dimension (width)
      */
@@ -251,29 +319,95 @@ public class Region {
      * @return the position in global coordinates of the region
      */
     public Vec getPosition() {
-        return mPosition;
+        return new Vec(FixedPoint.toFloat(mPositionX), FixedPoint.toFloat(mPositionY));
+    }
+
+    /**
+     * @return the x coordinate of the position in fixed-point
+     */
+    public long getFixedPositionX() {
+        return mPositionX;
+    }
+
+    /**
+     * @return the y coordinate of the position in fixed-point
+     */
+    public long getFixedPositionY() {
+        return mPositionY;
+    }
+
+    /**
+     * @return the cell holding the position, the global coordinates of local (0, 0)
+     */
+    public Point getCell() {
+        return new Point(mCellX, mCellY);
     }
 
     /**
      * @return the velocity of the region
      */
     public Vec getVelocity() {
-        return mVelocity;
+        return new Vec(FixedPoint.toFloat(mVelocityX), FixedPoint.toFloat(mVelocityY));
+    }
+
+    /**
+     * @return the x component of the velocity in fixed-point
+     */
+    public long getFixedVelocityX() {
+        return mVelocityX;
+    }
+
+    /**
+     * @return the y component of the velocity in fixed-point
+     */
+    public long getFixedVelocityY() {
+        return mVelocityY;
+    }
+
+    /**
+     * @return the number of chunks in the region
+     */
+    public int getArea() {
+        return (int) mCount;
     }
 
     /**
      * @return the centroid in global coordinates
      */
     public Vec getCentroid() {
-        final List<Point> points = getPoints();
+        return new Vec(
+            (float) ((double) mPositionX / FixedPoint.ONE + (double) mSumX / mCount),
+            (float) ((double) mPositionY / FixedPoint.ONE + (double) mSumY / mCount));
+    }
 
-        Vec sum = Vec.ZERO;
+    /**
+     * The second moments of area about the centroid, in cells^4, as the symmetric
+     * tensor [[Ixx, Ixy], [Ixy, Iyy]] with Ixx = sum (y - cy)^2, Iyy = sum (x - cx)^2
+     * and Ixy = -sum (x - cx)(y - cy).
+     * @return the inertia tensor of the region (zero for an empty region)
+     */
+    public float[][] getInertiaTensor() {
+        if (mCount == 0L) return new float[2][2];
 
-        for (final Point p : points) {
-            sum = Vec.sum(sum, Vec.extend(p));
-        }
+        final double ixx = mSumYY - (double) mSumY * mSumY / mCount;
+        final double iyy = mSumXX - (double) mSumX * mSumX / mCount;
+        final double ixy = -(mSumXY - (double) mSumX * mSumY / mCount);
 
-        return Vec.sum(getPosition(), Vec.scale(sum, 1f / points.size()));
+        return new float[][] {
+            { (float) ixx, (float) ixy },
+            { (float) ixy, (float) iyy }
+        };
+    }
+
+    /**
+     * @return the polar moment of area about the centroid in cells^4, i.e. the moment
+     *         of inertia for rotation in the plane per unit density
+     */
+    public float getPolarMoment() {
+        if (mCount == 0L) return 0f;
+
+        return (float) (mSumXX - (double) mSumX * mSumX / mCount
+                      + mSumYY - (double) mSumY * mSumY / mCount);
     }
 
     /**
@@ -293,6 +427,29 @@ public class Region {
         return rvalue;
     }
 
+    /**
+     * @return the displacement computed by the last evaluation of the height map in
+     *         cubic kilometers
+     */
+    public float getDisplacement() {
+        return mDisplacement;
+    }
+
+    /**
+     * @return whether the region's chunks, shape or integer position changed since the
+     *         flag was last cleared
+     */
+    public boolean isDirty() {
+        return mDirty;
+    }
+
+    /**
+     * @return a copy of the occupancy mask, where a set bit corresponds to a present chunk
+     */
+    public BitMask getOccupancy() {
+        return new BitMask(mOccupancy);
+    }
+
     /**
      * @param x the local x coordinate
      * @param y the local y coordinate
@@ -318,6 +475,7 @@ public class Region {
      */
     public float getDepthAt(final int x, final int y) {
         if (x < 0 || y < 0 || x >= mWidth || y >= mHeight) return 0f;
+        else if (contains(x, y)) return mHeightMap[y][x] - mLift;
         else return mHeightMap[y][x];
     }
 
@@ -329,6 +487,13 @@ public class Region {
         return getDepthAt(local.x, local.y);
     }
 
+    /**
+     * @return the height the region is lifted by in meters
+     */
+    public float getLift() {
+        return mLift;
+    }
+
     /**
      * @param x the local x coordinate
      * @param y the local y coordinate
@@ -493,6 +658,43 @@ public class Region {
             .collect(Collectors.toList());
     }
 
+    /**
+     * Computes the area swept by the region's last move. Unlike the shadow, this covers
+     * the entire gap left behind, so moves of more than one cell (or diagonal moves)
+     * produce a contiguous rift. The work is done on the occupancy mask a word at a time.
+     * Note: The region is assumed to have already moved by the given direction.
+     * @param direction the displacement of the move
+     * @return a pair of the exposed points (old footprint minus new footprint) and the
+     *         newly overlapped points (new footprint minus old footprint), in local coordinates
+     */
+    public Pair<List<Point>, List<Point>> getSweptArea(final Point direction) {
+        final int width  = mWidth + Math.abs(direction.x);
+        final int height = mHeight + Math.abs(direction.y);
+
+        // The frame spans both footprints, its origin is the local point 'origin'
+        final Point origin = new Point(Math.min(0, -direction.x), Math.min(0, -direction.y));
+
+        final BitMask newFootprint = mOccupancy.translate(-origin.x, -origin.y, width, height);
+        final BitMask oldFootprint = mOccupancy.translate(-direction.x - origin.x, -direction.y - origin.y, width, height);
+
+        final List<Point> exposed = new BitMask(oldFootprint).andNot(newFootprint).getPoints(origin);
+        final List<Point> overlapped = newFootprint.andNot(oldFootprint).getPoints(origin);
+
+        return new Pair<>(exposed, overlapped);
+    }
+
+    /**
+     * @param direction the displacement of the move
+     * @return the exposed and newly overlapped points (in global coordinates)
+     */
+    public Pair<List<Point>, List<Point>> getGlobalSweptArea(final Point direction) {
+        final Pair<List<Point>, List<Point>> sweep = getSweptArea(direction);
+
+        return new Pair<>(
+            sweep.first.stream().map(this::toGlobal).collect(Collectors.toList()),
+            sweep.second.stream().map(this::toGlobal).collect(Collectors.toList()));
+    }
+
     /**
      * See 'shadow-example.png'.
      * @return a list of shadows of the local boundary
@@ -536,7 +738,7 @@ public class Region {
      * @return The bounding box of this region in local coordinates
      */
     public BoundingBox getBoundingBox() {
-        return new BoundingBox(mPosition.truncate(), new Point(mWidth, mHeight));
+        return new BoundingBox(getCell(), new Point(mWidth, mHeight));
     }
 
     /**
@@ -547,14 +749,45 @@ public class Region {
      */
     public void setChunk(final int x, final int y, final Chunk chunk) {
         if (x < 0 || y < 0 || x >= mWidth || y >= mHeight) {
-            final List<Pair<Point, Chunk>> chunkPairs = getChunkPairs();
-            chunkPairs.add(new Pair<>(new Point(x, y), chunk));
-            overwrite(Region.buildRegion(chunkPairs, getPosition()));
+            resize(Math.min(x, 0), Math.min(y, 0), Math.max(x, mWidth - 1), Math.max(y, mHeight - 1));
+            setChunk(x - Math.min(x, 0), y - Math.min(y, 0), chunk);
         }
         else {
             final List<Optional<Chunk>> row = mChunks.get(y);
-            row.remove(x);
-            row.add(x, Optional.of(chunk));
+            row.set(x, Optional.of(chunk));
+
+            if (!mOccupancy.get(x, y)) {
+                accumulate(x, y, 1L);
+                mOccupancy.set(x, y, true);
+            }
+
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Sets many chunks at once, growing the region at most once to fit all of them.
+     * @param chunkPairs the chunks paired with their local positions
+     */
+    public void setChunks(final List<Pair<Point, Chunk>> chunkPairs) {
+        int minX = 0;
+        int minY = 0;
+        int maxX = mWidth - 1;
+        int maxY = mHeight - 1;
+
+        for (final Pair<Point, Chunk> pair : chunkPairs) {
+            if (pair.first.x < minX) minX = pair.first.x;
+            if (pair.first.y < minY) minY = pair.first.y;
+            if (pair.first.x > maxX) maxX = pair.first.x;
+            if (pair.first.y > maxY) maxY = pair.first.y;
+        }
+
+        if (minX < 0 || minY < 0 || maxX >= mWidth || maxY >= mHeight) {
+            resize(minX, minY, maxX, maxY);
+        }
+
+        for (final Pair<Point, Chunk> pair : chunkPairs) {
+            setChunk(pair.first.x - minX, pair.first.y - minY, pair.second);
         }
     }
 
@@ -576,8 +809,29 @@ public class Region {
         if (x < 0 || y < 0 || x >= mWidth || y >= mHeight) return;
 
         final List<Optional<Chunk>> row = mChunks.get(y);
-        row.remove(x);
-        row.add(x, Optional.empty());
+        row.set(x, Optional.empty());
+
+        if (mOccupancy.get(x, y)) {
+            accumulate(x, y, -1L);
+            mOccupancy.set(x, y, false);
+        }
+
+        mDirty = true;
+    }
+
+    /**
+     * Adds (or with sign -1, subtracts) a cell to the moment sums.
+     * @param x the local x coordinate
+     * @param y the local y coordinate
+     * @param sign 1 to add the cell, -1 to remove it
+     */
+    private void accumulate(final long x, final long y, final long sign) {
+        mCount += sign;
+        mSumX  += sign * x;
+        mSumY  += sign * y;
+        mSumXX += sign * x * x;
+        mSumYY += sign * y * y;
+        mSumXY += sign * x * y;
     }
 
     /**
@@ -588,6 +842,57 @@ public class Region {
         removeChunk(local.x, local.y);
     }
 
+    /**
+     * Grows the local frame to span [minX, maxX] x [minY, maxY] in the current local
+     * coordinates, keeping chunks, depths and velocity. The position moves so that
+     * nothing changes in global coordinates.
+     * @param minX the new minimum local x coordinate (at most 0)
+     * @param minY the new minimum local y coordinate (at most 0)
+     * @param maxX the new maximum local x coordinate (at least width - 1)
+     * @param maxY the new maximum local y coordinate (at least height - 1)
+     */
+    private void resize(final int minX, final int minY, final int maxX, final int maxY) {
+        final int width  = maxX - minX + 1;
+        final int height = maxY - minY + 1;
+
+        final List<List<Optional<Chunk>>> chunks = new ArrayList<>(height);
+        final float[][] heightMap = new float[height][width];
+
+        for (int i = 0; i < height; ++i) {
+            final List<Optional<Chunk>> row = new ArrayList<>(width);
+
+            for (int j = 0; j < width; ++j) {
+                row.add(getChunkAt(j + minX, i + minY));
+
+                if (contains(j + minX, i + minY)) {
+                    heightMap[i][j] = mHeightMap[i + minY][j + minX];
+                }
+            }
+
+            chunks.add(row);
+        }
+
+        // Every local coordinate shifts by (-minX, -minY), so the moments shift with it,
+        // e.g. sum (x - a)^2 = sum x^2 - 2a sum x + n a^2
+        final long a = minX;
+        final long b = minY;
+
+        mSumXX = mSumXX - 2 * a * mSumX + mCount * a * a;
+        mSumYY = mSumYY - 2 * b * mSumY + mCount * b * b;
+        mSumXY = mSumXY - b * mSumX - a * mSumY + mCount * a * b;
+        mSumX  = mSumX - mCount * a;
+        mSumY  = mSumY - mCount * b;
+
+        mOccupancy = mOccupancy.translate(-minX, -minY, width, height);
+        mChunks    = chunks;
+        mHeightMap = heightMap;
+        mWidth     = width;
+        mHeight    = height;
+        mDirty     = true;
+
+        setFixedPosition(mPositionX + FixedPoint.fromInt(minX), mPositionY + FixedPoint.fromInt(minY));
+    }
+
     /**
      * Sets the height of the chunk below the mantle
      * @param x the local x coordinate
@@ -608,18 +913,59 @@ public class Region {
         setDepthAt(local.x, local.y, height);
     }
 
+    /**
+     * @param id the id of the region within its simulation
+     */
+    public void setId(final int id) {
+        mId = id;
+    }
+
+    /**
+     * @param plateId the id of the plate the region belongs to
+     */
+    public void setPlateId(final int plateId) {
+        mPlateId = plateId;
+    }
+
     /**
      * @param position the new position
      */
     public void setPosition(final Vec position) {
-        mPosition = position;
+        setFixedPosition(FixedPoint.fromFloat(position.x), FixedPoint.fromFloat(position.y));
+    }
+
+    /**
+     * @param x the x coordinate of the new position in fixed-point
+     * @param y the y coordinate of the new position in fixed-point
+     */
+    public void setFixedPosition(final long x, final long y) {
+        final int cellX = FixedPoint.floor(x);
+        final int cellY = FixedPoint.floor(y);
+
+        if (cellX != mCellX || cellY != mCellY) {
+            mDirty = true;
+        }
+
+        mPositionX = x;
+        mPositionY = y;
+        mCellX = cellX;
+        mCellY = cellY;
     }
 
     /**
      * @param velocity the new velocity
      */
     public void setVelocity(final Vec velocity) {
-        mVelocity = velocity;
+        setFixedVelocity(FixedPoint.fromFloat(velocity.x), FixedPoint.fromFloat(velocity.y));
+    }
+
+    /**
+     * @param x the x component of the new velocity in fixed-point
+     * @param y the y component of the new velocity in fixed-point
+     */
+    public void setFixedVelocity(final long x, final long y) {
+        mVelocityX = x;
+        mVelocityY = y;
     }
 
     /**
@@ -627,13 +973,22 @@ public class Region {
      * @param dz the vertical displacement in meters
      */
     public void lift(final float dz) {
-        for (int i = 0; i < mHeight; ++i) {
-            for (int j = 0; j < mWidth; ++j) {
-                if (contains(j, i)) {
-                    mHeightMap[i][j] -= dz;
-                }
-            }
-        }
+        mLift += dz;
+    }
+
+    /**
+     * Sets the amount the region is lifted since its height map was last evaluated.
+     * @param dz the vertical displacement in meters
+     */
+    public void setLift(final float dz) {
+        mLift = dz;
+    }
+
+    /**
+     * Clears the dirty flag, see isDirty().
+     */
+    public void clearDirty() {
+        mDirty = false;
     }
 
     /**
@@ -644,10 +999,24 @@ public class Region {
     public void overwrite(final Region region) {
         mWidth     = region.mWidth;
         mHeight    = region.mHeight;
-        mPosition  = region.mPosition;
-        mVelocity  = region.mVelocity;
+        mPositionX = region.mPositionX;
+        mPositionY = region.mPositionY;
+        mCellX     = region.mCellX;
+        mCellY     = region.mCellY;
+        mVelocityX = region.mVelocityX;
+        mVelocityY = region.mVelocityY;
         mChunks    = region.mChunks;
         mHeightMap = region.mHeightMap;
+        mOccupancy = region.mOccupancy;
+        mCount     = region.mCount;
+        mSumX      = region.mSumX;
+        mSumY      = region.mSumY;
+        mSumXX     = region.mSumXX;
+        mSumYY     = region.mSumYY;
+        mSumXY     = region.mSumXY;
+        mLift      = region.mLift;
+        mDisplacement = region.mDisplacement;
+        mDirty     = true;
     }
 
     /**
@@ -673,7 +1042,10 @@ public class Region {
 
         final float s = Chunk.WIDTH_IN_KM.toKilometers();
 
-        return Length.fromMeters(totalDepth).toKilometers() * s * s;
+        mLift = 0f;
+        mDisplacement = Length.fromMeters(totalDepth).toKilometers() * s * s;
+
+        return mDisplacement;
     }
 
     /**
@@ -696,7 +1068,7 @@ public class Region {
                 }
             }
 
-            final Region region = Region.buildRegion(pairs, mPosition);
+            final Region region = buildChild(pairs);
             
             for (final Point point : regionPoints) {
                 if (getChunkAt(point).isPresent()) {
@@ -744,12 +1116,25 @@ public class Region {
         final List<Region> regions = new ArrayList<>(numberOfCentroids);
 
         for (int i = 0; i < numberOfCentroids; ++i) {
-            regions.add(Region.buildRegion(groups.get(i), mPosition));
+            regions.add(buildChild(groups.get(i)));
         }
 
         return regions;
     }
 
+    /**
+     * Builds a region from some of this region's chunks, positioned exactly in
+     * fixed-point relative to this region.
+     * @param chunkPairs the chunks paired with their local coordinates in this region
+     * @return the new region
+     */
+    private Region buildChild(final List<Pair<Point, Chunk>> chunkPairs) {
+        final Region region = Region.buildRegion(chunkPairs, Vec.ZERO);
+
+        region.setFixedPosition(mPositionX + region.mPositionX, mPositionY + region.mPositionY);
+        return region;
+    }
+
     /**
      * Creates a pair of a region and its upper left corner in the old coordinate system.
      * @param chunkPairs the pairs to build a region from in old coordinates
@@ -833,14 +1218,13 @@ public class Region {
         final int width  = region.getWidth();
         final int height = region.getHeight();
         
-        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        final Graphics      g     = image.getGraphics();
-        final Boolean[][]   array = region.toBooleanArray();
+        final BufferedImage image  = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final int[]         pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        final Boolean[][]   array  = region.toBooleanArray();
 
         for (int i = 0; i < height; ++i) {
             for (int j = 0; j < width; ++j) {
-                g.setColor(array[i][j] ? Color.WHITE : Color.BLACK);
-                g.drawLine(j, i, j, i);
+                pixels[i * width + j] = array[i][j] ? 0xFFFFFF : 0x000000;
             }
         }
 
@@ -1,8 +1,12 @@
 package com.tectonics.plates;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.stream.Collectors;
 import java.awt.Point;
 
@@ -11,15 +15,18 @@ import com.tectonics.util.WrappedBox;
 import com.tectonics.Simulation;
 import com.tectonics.util.BoundingBox;
 import com.tectonics.util.Length;
+import com.tectonics.util.Pair;
 import com.tectonics.util.Vec;
 
 public class TerrainGeneration {
     
     /**
-     * Precondition:  Assumes neighbors is non-empty
+     * Note: Points without neighboring regions (e.g. deep inside a wide rift) are left empty
      * @param point the point in global coordinates
      */
     public static void fillEmptyPoint(final Point point, final WrappedBox wrappedBox, final List<Region> neighbors) {
+        if (neighbors.isEmpty()) return;
+
         final Region selected = Util.randomElement(neighbors);
         
         final BoundingBox selectedBox = selected.getBoundingBox();
@@ -50,6 +57,87 @@ public class TerrainGeneration {
         }
     }
 
+    /**
+     * Fills all of the points exposed during a tick at once. Neighbor thicknesses are read
+     * from the world raster rather than by searching the regions, and the new chunks are
+     * inserted into each owning region in a single batch so that a region grows at most
+     * once. Filled points are written back to the raster, so a wide rift fills in from its
+     * edges within the same pass.
+     * @param points the exposed points in global coordinates
+     * @param raster the world raster
+     * @param regions the regions of the simulation, indexed by id
+     * @return the number of points filled
+     */
+    public static int fillEmptyPoints(final Collection<Point> points, final WorldRaster raster, final List<Region> regions) {
+        final WrappedBox wrappedBox = raster.getWrappedBox();
+        final Map<Integer, List<Pair<Point, Chunk>>> insertions = new HashMap<>();
+        final BitSet visited = new BitSet(wrappedBox.getArea());
+        final List<Integer> candidates = new ArrayList<>(4);
+
+        int filled = 0;
+
+        for (final Point point : points) {
+            final int index = raster.indexOf(point);
+
+            if (visited.get(index) || raster.isOccupied(point)) continue;
+            visited.set(index);
+
+            float totalThickness = 0f;
+            candidates.clear();
+
+            for (final Point neighborPoint : wrappedBox.getNeighbors(point)) {
+                final int id = raster.getRegionId(neighborPoint);
+
+                if (id != WorldRaster.EMPTY) {
+                    totalThickness += raster.getThickness(neighborPoint);
+                    candidates.add(id);
+                }
+            }
+
+            if (candidates.isEmpty()) continue;
+
+            final Length averageThickness = Length.fromMeters(totalThickness / candidates.size());
+
+            if (averageThickness.lessThanEquals(Simulation.RUPTURE_THICKNESS)) {
+                final int selectedId = Util.randomElement(candidates);
+                final Region selected = regions.get(selectedId);
+                final Point unwrapped = unwrapNear(wrappedBox, selected.getBoundingBox(), point);
+
+                final Chunk chunk = new Chunk();
+                chunk.deposit(new Chunk.Layer(Chunk.RockType.BASALT, averageThickness.scale(0.9f).toMeters()));
+
+                insertions.computeIfAbsent(selectedId, id -> new ArrayList<>())
+                    .add(new Pair<>(selected.toLocal(unwrapped), chunk));
+                raster.set(point, selectedId, chunk.getThickness().toMeters());
+                ++filled;
+            }
+        }
+
+        for (final Map.Entry<Integer, List<Pair<Point, Chunk>>> entry : insertions.entrySet()) {
+            regions.get(entry.getKey()).setChunks(entry.getValue());
+        }
+
+        return filled;
+    }
+
+    /**
+     * Unwraps a point next to a bounding box. Points filled earlier in the same batch can
+     * sit outside the box expanded by one, in which case the point is placed relative to
+     * the center of the box.
+     * @param wrappedBox the wrapped context
+     * @param box the unwrapped bounding box
+     * @param point the point to unwrap
+     * @return the unwrapped point
+     */
+    private static Point unwrapNear(final WrappedBox wrappedBox, final BoundingBox box, final Point point) {
+        final Optional<Point> unwrapped = wrappedBox.getUnwrapped(box.expandByOne(), point);
+
+        if (unwrapped.isPresent()) return unwrapped.get();
+
+        final Point center = Util.sumPoints(box.mLocation, new Point(box.mDimensions.x / 2, box.mDimensions.y / 2));
+        return Util.sumPoints(center, wrappedBox.displacement(center, point));
+    }
+
     /**
      * @param width in pixels
      * @param height in pixels
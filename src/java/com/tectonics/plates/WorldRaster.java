@@ -0,0 +1,793 @@
+package com.tectonics.plates;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.awt.Point;
+
+import com.tectonics.util.BoundingBox;
+import com.tectonics.util.Pair;
+import com.tectonics.util.WrappedBox;
+
+/**
+ * Per-cell rasters of the whole (wrapped) world. Instead of searching every region to
+ * find out what lies at a point, the simulation stamps each region into these arrays
+ * once per tick and later stages read them in constant time.
+ */
+public class WorldRaster {
+
+    /**
+     * The region id used for cells that have no chunk
+     */
+    public static final int EMPTY = -1;
+
+    /**
+     * The boundary code used for cells that are not on a region boundary. Boundary cells
+     * hold the ordinal of their Region.BoundaryType plus one.
+     */
+    public static final byte NOT_BOUNDARY = 0;
+
+    /**
+     * The top rock code used for cells that have no chunk. Other cells hold the ordinal
+     * of their top Chunk.RockType.
+     */
+    public static final byte NO_ROCK = -1;
+
+    /**
+     * The side length of the square tiles that are classified in parallel and whose
+     * changes are tracked
+     */
+    public static final int TILE_SIZE = 64;
+
+    /**
+     * The offsets of the 8 neighbors of a cell, the first four being the direct neighbors
+     */
+    private static final int[] NEIGHBOR_DX = { 1, -1, 0,  0, 1,  1, -1, -1 };
+    private static final int[] NEIGHBOR_DY = { 0,  0, 1, -1, 1, -1,  1, -1 };
+
+    /**
+     * The wrapped box the raster covers
+     */
+    private final WrappedBox mWrappedBox;
+
+    /**
+     * The id of the region owning each cell, or EMPTY
+     */
+    private final int[] mRegionIds;
+
+    /**
+     * The thickness of the chunk in each cell in meters, zero where empty
+     */
+    private final float[] mThickness;
+
+    /**
+     * The top rock code of each cell
+     */
+    private final byte[] mTopRocks;
+
+    /**
+     * The elevation of each cell in meters before the global lift, zero where empty
+     */
+    private final float[] mElevations;
+
+    /**
+     * The height every region is lifted by in meters
+     */
+    private float mLift = 0f;
+
+    /**
+     * The number of regions claiming each cell (saturating)
+     */
+    private final byte[] mClaims;
+
+    /**
+     * The claimants of every cell claimed more than once, keyed by cell index
+     */
+    private final Map<Integer, List<Integer>> mContested;
+
+    /**
+     * The boundary classification code of each cell
+     */
+    private final byte[] mBoundaryTypes;
+
+    /**
+     * The bounding box each region had when it was last stamped, indexed by region id
+     */
+    private final List<BoundingBox> mStampedBoxes;
+
+    /**
+     * The ids of the regions whose stamped bounding box touches each tile
+     */
+    private final BitSet[] mTileRegions;
+
+    /**
+     * Scratch set of the cells being restamped by an incremental update
+     */
+    private final BitSet mDamaged;
+
+    /**
+     * The tiles whose boundary classification is out of date
+     */
+    private final boolean[] mDirtyTiles;
+
+    /**
+     * The value of mChangeCount when each tile last changed
+     */
+    private final long[] mTileChanges;
+
+    /**
+     * The number of times tiles were marked as changed
+     */
+    private long mChangeCount = 0L;
+
+    /**
+     * The number of tiles along each axis
+     */
+    private final int mTilesX;
+    private final int mTilesY;
+
+    /**
+     * @param wrappedBox the world the raster covers
+     */
+    public WorldRaster(final WrappedBox wrappedBox) {
+        mWrappedBox = wrappedBox;
+        mRegionIds = new int[wrappedBox.getArea()];
+        mThickness = new float[wrappedBox.getArea()];
+        mTopRocks = new byte[wrappedBox.getArea()];
+        mElevations = new float[wrappedBox.getArea()];
+        mBoundaryTypes = new byte[wrappedBox.getArea()];
+        mClaims = new byte[wrappedBox.getArea()];
+        mContested = new HashMap<>();
+        mStampedBoxes = new ArrayList<>();
+        mDamaged = new BitSet(wrappedBox.getArea());
+
+        mTilesX = (wrappedBox.getWidth() + TILE_SIZE - 1) / TILE_SIZE;
+        mTilesY = (wrappedBox.getHeight() + TILE_SIZE - 1) / TILE_SIZE;
+        mDirtyTiles = new boolean[mTilesX * mTilesY];
+        mTileChanges = new long[mTilesX * mTilesY];
+        mTileRegions = new BitSet[mTilesX * mTilesY];
+
+        for (int tile = 0; tile < mTileRegions.length; ++tile) {
+            mTileRegions[tile] = new BitSet();
+        }
+
+        Arrays.fill(mRegionIds, EMPTY);
+        Arrays.fill(mTopRocks, NO_ROCK);
+    }
+
+    /**
+     * Clears the raster and stamps every region into it.
+     * @param regions the regions indexed by id, with null for removed ids
+     */
+    public void rebuild(final List<Region> regions) {
+        Arrays.fill(mRegionIds, EMPTY);
+        Arrays.fill(mThickness, 0f);
+        Arrays.fill(mTopRocks, NO_ROCK);
+        Arrays.fill(mElevations, 0f);
+        Arrays.fill(mClaims, (byte) 0);
+        Arrays.fill(mDirtyTiles, true);
+        Arrays.fill(mTileChanges, ++mChangeCount);
+        mContested.clear();
+        mStampedBoxes.clear();
+
+        for (final BitSet ids : mTileRegions) {
+            ids.clear();
+        }
+
+        for (int id = 0; id < regions.size(); ++id) {
+            if (regions.get(id) != null) stamp(id, regions.get(id), null);
+        }
+    }
+
+    /**
+     * Brings the raster up to date after some regions changed. Only the cells covered by
+     * the old and new bounding boxes of the changed regions are cleared, and only the
+     * changed regions and the regions registered in the tiles of those cells are stamped
+     * again (in id order, so ownership of contested cells matches a full rebuild). The
+     * cost follows the area that changed, not the number of regions.
+     * @param regions the regions indexed by id, with null for removed ids
+     * @param changedIds the ids of the regions that changed shape, chunks or position
+     */
+    public void update(final List<Region> regions, final List<Integer> changedIds) {
+        if (changedIds.isEmpty()) return;
+
+        final List<BoundingBox> damage = new ArrayList<>(2 * changedIds.size());
+        final BitSet restamped = new BitSet();
+
+        for (final int id : changedIds) {
+            if (id < mStampedBoxes.size() && mStampedBoxes.get(id) != null) {
+                damage.add(mStampedBoxes.get(id));
+            }
+            damage.add(regions.get(id).getBoundingBox());
+            restamped.set(id);
+        }
+
+        for (final BoundingBox box : damage) {
+            forEachCell(box, index -> {
+                if (!mDamaged.get(index)) {
+                    mDamaged.set(index);
+                    clearCell(index);
+                }
+            });
+            markTiles(box);
+            forEachTile(box, tile -> restamped.or(mTileRegions[tile]));
+        }
+
+        restamp(regions, restamped, damage);
+    }
+
+    /**
+     * Takes a removed region out of the raster. Only the cells it claimed are cleared,
+     * and only the other regions registered in their tiles are stamped again, so the cost
+     * follows the region's area rather than the world's.
+     * @param regions the regions indexed by id, with null for removed ids (including
+     *        this one)
+     * @param region the removed region
+     */
+    public void remove(final List<Region> regions, final Region region) {
+        final int id = region.getId();
+        final List<BoundingBox> damage = new ArrayList<>(2);
+        final BitSet restamped = new BitSet();
+
+        // Cells filled since the last stamp lie outside the stamped box
+        if (id < mStampedBoxes.size() && mStampedBoxes.get(id) != null) {
+            damage.add(mStampedBoxes.get(id));
+            mStampedBoxes.set(id, null);
+        }
+        damage.add(region.getBoundingBox());
+
+        for (final BoundingBox box : damage) {
+            forEachCell(box, index -> {
+                final List<Integer> claimants = mContested.get(index);
+
+                if (mRegionIds[index] == id || (claimants != null && claimants.contains(id))) {
+                    mDamaged.set(index);
+                    clearCell(index);
+                }
+            });
+            markTiles(box);
+            forEachTile(box, tile -> {
+                mTileRegions[tile].clear(id);
+                restamped.or(mTileRegions[tile]);
+            });
+        }
+
+        restamp(regions, restamped, damage);
+    }
+
+    /**
+     * Stamps the damaged cells of some regions again and forgets which cells were damaged.
+     * @param regions the regions indexed by id, with null for removed ids
+     * @param ids the ids of the regions to stamp, in the order they are stamped
+     * @param damage boxes covering every damaged cell
+     */
+    private void restamp(final List<Region> regions, final BitSet ids, final List<BoundingBox> damage) {
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+            if (id < regions.size() && regions.get(id) != null) stamp(id, regions.get(id), mDamaged);
+        }
+
+        for (final BoundingBox box : damage) {
+            forEachCell(box, mDamaged::clear);
+        }
+    }
+
+    /**
+     * Writes the cells of a single region into the raster. Cells that are already claimed
+     * by another region become contested, and the last region stamped owns them.
+     * @param id the id of the region
+     * @param region the region to stamp
+     * @param filter the cells to write, or null to write all of them
+     */
+    private void stamp(final int id, final Region region, final BitSet filter) {
+        final int width  = mWrappedBox.getWidth();
+        final int height = mWrappedBox.getHeight();
+        final Point origin = region.toGlobal(new Point());
+
+        for (int i = 0; i < region.getHeight(); ++i) {
+            final int y = Math.floorMod(origin.y + i, height);
+
+            for (int j = 0; j < region.getWidth(); ++j) {
+                final int index = y * width + Math.floorMod(origin.x + j, width);
+
+                if (filter != null && !filter.get(index)) continue;
+
+                final Optional<Chunk> chunk = region.getChunkAt(j, i);
+
+                if (chunk.isPresent()) {
+                    final float thickness = chunk.get().getThickness().toMeters();
+
+                    claim(index, id, thickness);
+                    mTopRocks[index] = (byte) chunk.get().getTopRockType().ordinal();
+                    mElevations[index] = thickness - region.getDepthAt(j, i) - region.getLift();
+                }
+            }
+        }
+
+        while (mStampedBoxes.size() <= id) mStampedBoxes.add(null);
+
+        final BoundingBox stamped = mStampedBoxes.get(id);
+        final BoundingBox box = region.getBoundingBox();
+
+        if (stamped != null) forEachTile(stamped, tile -> mTileRegions[tile].clear(id));
+
+        forEachTile(box, tile -> mTileRegions[tile].set(id));
+        mStampedBoxes.set(id, box);
+    }
+
+    /**
+     * Rewrites the elevations of the cells owned by some regions, after their height maps
+     * were re-evaluated.
+     * @param regions the regions indexed by id, with null for removed ids
+     * @param ids the ids of the regions to rewrite
+     */
+    public void updateElevations(final List<Region> regions, final BitSet ids) {
+        final int width  = mWrappedBox.getWidth();
+        final int height = mWrappedBox.getHeight();
+
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+            final Region region = regions.get(id);
+
+            if (region == null) continue;
+
+            final Point origin = region.toGlobal(new Point());
+            markTiles(region.getBoundingBox());
+
+            for (int i = 0; i < region.getHeight(); ++i) {
+                final int y = Math.floorMod(origin.y + i, height);
+
+                for (int j = 0; j < region.getWidth(); ++j) {
+                    final int index = y * width + Math.floorMod(origin.x + j, width);
+
+                    if (mRegionIds[index] == id) {
+                        mElevations[index] = mThickness[index] - region.getDepthAt(j, i) - region.getLift();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param lift the height every region is lifted by in meters
+     */
+    public void setLift(final float lift) {
+        mLift = lift;
+    }
+
+    /**
+     * Empties a cell.
+     * @param index the index of the cell
+     */
+    private void clearCell(final int index) {
+        mRegionIds[index] = EMPTY;
+        mThickness[index] = 0f;
+        mTopRocks[index] = NO_ROCK;
+        mElevations[index] = 0f;
+        mClaims[index] = 0;
+        mContested.remove(index);
+    }
+
+    /**
+     * Runs an action on the index of every cell in a (wrapped) bounding box.
+     * @param box the unwrapped bounding box
+     * @param action the action to run
+     */
+    private void forEachCell(final BoundingBox box, final IntConsumer action) {
+        final int width  = mWrappedBox.getWidth();
+        final int height = mWrappedBox.getHeight();
+        final int boxWidth  = Math.min(box.mDimensions.x, width);
+        final int boxHeight = Math.min(box.mDimensions.y, height);
+
+        for (int i = 0; i < boxHeight; ++i) {
+            final int y = Math.floorMod(box.mLocation.y + i, height);
+
+            for (int j = 0; j < boxWidth; ++j) {
+                action.accept(y * width + Math.floorMod(box.mLocation.x + j, width));
+            }
+        }
+    }
+
+    /**
+     * Runs an action on the index of every tile touching a (wrapped) bounding box.
+     * @param box the unwrapped bounding box
+     * @param action the action to run
+     */
+    private void forEachTile(final BoundingBox box, final IntConsumer action) {
+        final boolean[] columns = getTileSpan(box.mLocation.x, box.mDimensions.x, mWrappedBox.getWidth(), mTilesX);
+        final boolean[] rows = getTileSpan(box.mLocation.y, box.mDimensions.y, mWrappedBox.getHeight(), mTilesY);
+
+        for (int ty = 0; ty < mTilesY; ++ty) {
+            if (!rows[ty]) continue;
+
+            for (int tx = 0; tx < mTilesX; ++tx) {
+                if (columns[tx]) action.accept(ty * mTilesX + tx);
+            }
+        }
+    }
+
+    /**
+     * Marks the classification of the tiles touching the box (or its 8-neighbors) as out
+     * of date, and the tiles as changed.
+     * @param box the unwrapped bounding box
+     */
+    private void markTiles(final BoundingBox box) {
+        final long change = ++mChangeCount;
+        final boolean[] columns = getTileSpan(box.mLocation.x - 1, box.mDimensions.x + 2, mWrappedBox.getWidth(), mTilesX);
+        final boolean[] rows = getTileSpan(box.mLocation.y - 1, box.mDimensions.y + 2, mWrappedBox.getHeight(), mTilesY);
+
+        for (int ty = 0; ty < mTilesY; ++ty) {
+            if (!rows[ty]) continue;
+
+            for (int tx = 0; tx < mTilesX; ++tx) {
+                if (!columns[tx]) continue;
+
+                final int tile = ty * mTilesX + tx;
+                mDirtyTiles[tile] = true;
+                mTileChanges[tile] = change;
+            }
+        }
+    }
+
+    /**
+     * The tiles along one axis touched by a span of cells. The span is wrapped cell by cell
+     * rather than tile by tile, since the last tile may be narrower than the others.
+     * @param from the first (unwrapped) coordinate of the span
+     * @param length the number of cells of the span
+     * @param size the size of the world along the axis
+     * @param tileCount the number of tiles along the axis
+     * @return whether each tile is touched
+     */
+    private static boolean[] getTileSpan(final int from, final int length, final int size, final int tileCount) {
+        final boolean[] touched = new boolean[tileCount];
+
+        if (length >= size) {
+            Arrays.fill(touched, true);
+            return touched;
+        }
+
+        final int first = Math.floorMod(from, size);
+        final int last = first + length - 1;
+
+        for (int tile = first / TILE_SIZE; tile <= Math.min(last, size - 1) / TILE_SIZE; ++tile) {
+            touched[tile] = true;
+        }
+
+        // The part of the span past the edge of the world
+        for (int tile = 0; tile <= (last - size) / TILE_SIZE && last >= size; ++tile) {
+            touched[tile] = true;
+        }
+
+        return touched;
+    }
+
+    /**
+     * Marks the classification around a region as out of date, e.g. after its velocity changed.
+     * @param id the id of the region
+     */
+    public void invalidateClassification(final int id) {
+        if (id < mStampedBoxes.size() && mStampedBoxes.get(id) != null) {
+            markTiles(mStampedBoxes.get(id));
+        }
+    }
+
+    /**
+     * Records a single cell, e.g. one that was just filled. Its top rock and elevation are
+     * only written when the region is stamped again.
+     * @param point the point in global coordinates
+     * @param id the id of the owning region
+     * @param thicknessMeters the thickness of the chunk in meters
+     */
+    public void set(final Point point, final int id, final float thicknessMeters) {
+        claim(indexOf(point), id, thicknessMeters);
+        markTiles(new BoundingBox(mWrappedBox.wrap(point), new Point(1, 1)));
+    }
+
+    /**
+     * Records a region's claim on a cell.
+     * @param index the index of the cell
+     * @param id the id of the claiming region
+     * @param thicknessMeters the thickness of the region's chunk in meters
+     */
+    private void claim(final int index, final int id, final float thicknessMeters) {
+        final int previous = mRegionIds[index];
+
+        if (previous != EMPTY && previous != id) {
+            mContested.computeIfAbsent(index, key -> {
+                final List<Integer> claimants = new ArrayList<>(2);
+                claimants.add(previous);
+                return claimants;
+            }).add(id);
+        }
+
+        if (mClaims[index] != Byte.MAX_VALUE) ++mClaims[index];
+
+        mRegionIds[index] = id;
+        mThickness[index] = thicknessMeters;
+    }
+
+    /**
+     * Classifies the region boundary cells of every out of date tile, in parallel over
+     * tiles. A cell
+     * is on a boundary when one of its direct neighbors belongs to another region (or
+     * none). Its type follows from the velocity of the neighboring regions relative to
+     * its own, projected onto the average direction of the foreign 8-neighbors.
+     * @param velocityX the x velocity of each region, indexed by region id
+     * @param velocityY the y velocity of each region, indexed by region id
+     * @param threshold the relative speed below which a boundary is stationary
+     */
+    public void classifyBoundaries(final float[] velocityX, final float[] velocityY, final float threshold) {
+        final int width  = mWrappedBox.getWidth();
+        final int height = mWrappedBox.getHeight();
+
+        IntStream.range(0, mTilesX * mTilesY).filter(tile -> mDirtyTiles[tile]).parallel().forEach(tile -> {
+            final int x0 = (tile % mTilesX) * TILE_SIZE;
+            final int y0 = (tile / mTilesX) * TILE_SIZE;
+            final int x1 = Math.min(x0 + TILE_SIZE, width);
+            final int y1 = Math.min(y0 + TILE_SIZE, height);
+
+            for (int y = y0; y < y1; ++y) {
+                for (int x = x0; x < x1; ++x) {
+                    mBoundaryTypes[y * width + x] = classify(x, y, velocityX, velocityY, threshold);
+                }
+            }
+        });
+
+        Arrays.fill(mDirtyTiles, false);
+    }
+
+    /**
+     * @param x the wrapped x coordinate
+     * @param y the wrapped y coordinate
+     * @param velocityX the x velocity of each region, indexed by region id
+     * @param velocityY the y velocity of each region, indexed by region id
+     * @param threshold the relative speed below which a boundary is stationary
+     * @return the boundary code of the cell
+     */
+    private byte classify(final int x, final int y, final float[] velocityX, final float[] velocityY, final float threshold) {
+        final int width  = mWrappedBox.getWidth();
+        final int height = mWrappedBox.getHeight();
+        final int id = mRegionIds[y * width + x];
+
+        if (id == EMPTY) return NOT_BOUNDARY;
+
+        boolean onBoundary = false;
+        int regionCount = 0;
+        float sumX = 0f;
+        float sumY = 0f;
+        float sumVX = 0f;
+        float sumVY = 0f;
+
+        for (int k = 0; k < NEIGHBOR_DX.length; ++k) {
+            final int nx = x + NEIGHBOR_DX[k];
+            final int ny = y + NEIGHBOR_DY[k];
+            final int neighborId = mRegionIds[Math.floorMod(ny, height) * width + Math.floorMod(nx, width)];
+
+            if (neighborId == id) continue;
+
+            if (k < 4) onBoundary = true;
+
+            sumX += NEIGHBOR_DX[k];
+            sumY += NEIGHBOR_DY[k];
+
+            if (neighborId != EMPTY) {
+                sumVX += velocityX[neighborId];
+                sumVY += velocityY[neighborId];
+                ++regionCount;
+            }
+        }
+
+        if (!onBoundary) return NOT_BOUNDARY;
+
+        Region.BoundaryType type = Region.BoundaryType.STATIONARY;
+
+        final float posLength = (float) Math.sqrt(sumX * sumX + sumY * sumY);
+
+        if (regionCount > 0 && posLength > 0f) {
+            final float posX = sumX / posLength;
+            final float posY = sumY / posLength;
+            final float relVX = sumVX / regionCount - velocityX[id];
+            final float relVY = sumVY / regionCount - velocityY[id];
+
+            final float axialIndicator = relVX * posX + relVY * posY;
+            final float lateralIndicator = -relVY * posX + relVX * posY;
+
+            if (axialIndicator < -threshold) type = Region.BoundaryType.CONVERGENT;
+            else if (axialIndicator > threshold) type = Region.BoundaryType.DIVERGENT;
+            else if (Math.abs(lateralIndicator) > threshold) type = Region.BoundaryType.TRANSFORM;
+        }
+
+        return (byte) (type.ordinal() + 1);
+    }
+
+    /**
+     * @return the wrapped box the raster covers
+     */
+    public WrappedBox getWrappedBox() {
+        return mWrappedBox;
+    }
+
+    /**
+     * @return the number of times tiles were marked as changed so far. A reader that
+     *         remembers it can later find the tiles changed since with getTileChange.
+     */
+    public long getChangeCount() {
+        return mChangeCount;
+    }
+
+    /**
+     * @param tile a tile index, row major
+     * @return the change count at which the cells (or boundary codes) of the tile last
+     *         changed
+     */
+    public long getTileChange(final int tile) {
+        return mTileChanges[tile];
+    }
+
+    /**
+     * @return the number of tiles along the x axis
+     */
+    public int getTilesX() {
+        return mTilesX;
+    }
+
+    /**
+     * @return the number of tiles along the y axis
+     */
+    public int getTilesY() {
+        return mTilesY;
+    }
+
+    /**
+     * @param point a point in global coordinates (wrapped automatically)
+     * @return the index of the point in the raster arrays
+     */
+    public int indexOf(final Point point) {
+        final Point wrapped = mWrappedBox.wrap(point);
+        return wrapped.y * mWrappedBox.getWidth() + wrapped.x;
+    }
+
+    /**
+     * @param point a point in global coordinates
+     * @return the id of the region at the point, or EMPTY
+     */
+    public int getRegionId(final Point point) {
+        return mRegionIds[indexOf(point)];
+    }
+
+    /**
+     * @param point a point in global coordinates
+     * @return the thickness of the chunk at the point in meters, zero where empty
+     */
+    public float getThickness(final Point point) {
+        return mThickness[indexOf(point)];
+    }
+
+    /**
+     * @param point a point in global coordinates
+     * @return the elevation of the chunk at the point in meters, zero where empty
+     */
+    public float getElevation(final Point point) {
+        final int index = indexOf(point);
+        return mRegionIds[index] == EMPTY ? 0f : mElevations[index] + mLift;
+    }
+
+    /**
+     * @param point a point in global coordinates
+     * @return the top rock type at the point, if there is a chunk
+     */
+    public Optional<Chunk.RockType> getTopRock(final Point point) {
+        final byte code = mTopRocks[indexOf(point)];
+        return code == NO_ROCK ? Optional.empty() : Optional.of(Chunk.RockType.values()[code]);
+    }
+
+    /**
+     * @return the region id of every cell, row major. Not to be modified.
+     */
+    public int[] getRegionIds() {
+        return mRegionIds;
+    }
+
+    /**
+     * @return the top rock codes of every cell, row major. Not to be modified.
+     */
+    public byte[] getTopRocks() {
+        return mTopRocks;
+    }
+
+    /**
+     * Note: The global lift is not included, see getLift.
+     * @return the elevations of every cell in meters, row major. Not to be modified.
+     */
+    public float[] getElevations() {
+        return mElevations;
+    }
+
+    /**
+     * @return the height every region is lifted by in meters
+     */
+    public float getLift() {
+        return mLift;
+    }
+
+    /**
+     * @param point a point in global coordinates
+     * @return whether there is a chunk at the point
+     */
+    public boolean isOccupied(final Point point) {
+        return mRegionIds[indexOf(point)] != EMPTY;
+    }
+
+    /**
+     * @param point a point in global coordinates
+     * @return the boundary type of the point, if it is on a region boundary
+     */
+    public Optional<Region.BoundaryType> getBoundaryType(final Point point) {
+        return decodeBoundaryType(mBoundaryTypes[indexOf(point)]);
+    }
+
+    /**
+     * @return the boundary codes of every cell, row major. Not to be modified.
+     */
+    public byte[] getBoundaryTypes() {
+        return mBoundaryTypes;
+    }
+
+    /**
+     * @param code a boundary code
+     * @return the boundary type the code stands for, if any
+     */
+    public static Optional<Region.BoundaryType> decodeBoundaryType(final byte code) {
+        if (code == NOT_BOUNDARY) return Optional.empty();
+        return Optional.of(Region.BoundaryType.values()[code - 1]);
+    }
+
+    /**
+     * @param point a point in global coordinates
+     * @return the number of regions claiming the point
+     */
+    public int getClaimCount(final Point point) {
+        return mClaims[indexOf(point)];
+    }
+
+    /**
+     * @return the number of cells claimed by more than one region
+     */
+    public int getContestedCount() {
+        return mContested.size();
+    }
+
+    /**
+     * Groups the contested cells by the pairs of regions claiming them. A cell claimed by
+     * more than two regions appears under every pair of its claimants. This only visits
+     * the contested cells.
+     * @return the contested points (wrapped) keyed by (smaller id, larger id)
+     */
+    public Map<Pair<Integer, Integer>, List<Point>> getOverlaps() {
+        final Map<Pair<Integer, Integer>, List<Point>> overlaps = new HashMap<>();
+        final int width = mWrappedBox.getWidth();
+
+        for (final Map.Entry<Integer, List<Integer>> entry : mContested.entrySet()) {
+            final Point point = new Point(entry.getKey() % width, entry.getKey() / width);
+            final List<Integer> claimants = entry.getValue();
+
+            for (int i = 1; i < claimants.size(); ++i) {
+                for (int j = 0; j < i; ++j) {
+                    final int id1 = claimants.get(i);
+                    final int id2 = claimants.get(j);
+
+                    if (id1 == id2) continue;
+
+                    overlaps.computeIfAbsent(new Pair<>(Math.min(id1, id2), Math.max(id1, id2)), pair -> new ArrayList<>())
+                        .add(point);
+                }
+            }
+        }
+
+        return overlaps;
+    }
+}
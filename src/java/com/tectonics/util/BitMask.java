@@ -0,0 +1,263 @@
+package com.tectonics.util;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A two dimensional array of bits packed 64 to a word, row by row. Operations
+ * that combine or shift whole masks work a word at a time, so their cost is
+ * proportional to the area of the mask divided by 64.
+ */
+public class BitMask {
+
+    private static final int WORD_BITS = 64;
+
+    private static final int WORD_SHIFT = 6;
+
+    /**
+     * The x dimension of the mask
+     */
+    private final int mWidth;
+
+    /**
+     * The y dimension of the mask
+     */
+    private final int mHeight;
+
+    /**
+     * The number of words used to store each row
+     */
+    private final int mWordsPerRow;
+
+    /**
+     * The packed bits, row major
+     */
+    private final long[] mWords;
+
+    /**
+     * Builds an empty mask of the specified size
+     * @param width the width of the mask
+     * @param height the height of the mask
+     */
+    public BitMask(final int width, final int height) {
+        assert width >= 0;
+        assert height >= 0;
+
+        mWidth = width;
+        mHeight = height;
+        mWordsPerRow = (width + WORD_BITS - 1) >>> WORD_SHIFT;
+        mWords = new long[mWordsPerRow * height];
+    }
+
+    /**
+     * @param mask the mask to copy
+     */
+    public BitMask(final BitMask mask) {
+        mWidth = mask.mWidth;
+        mHeight = mask.mHeight;
+        mWordsPerRow = mask.mWordsPerRow;
+        mWords = mask.mWords.clone();
+    }
+
+    /**
+     * @return the x dimension of the mask
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return the y dimension of the mask
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @return whether the bit at (x, y) is set, false if (x, y) is outside the mask
+     */
+    public boolean get(final int x, final int y) {
+        if (x < 0 || y < 0 || x >= mWidth || y >= mHeight) return false;
+        return (mWords[y * mWordsPerRow + (x >>> WORD_SHIFT)] & (1L << x)) != 0;
+    }
+
+    /**
+     * Sets or clears the bit at (x, y). Coordinates outside the mask are ignored.
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param value the value of the bit
+     */
+    public void set(final int x, final int y, final boolean value) {
+        if (x < 0 || y < 0 || x >= mWidth || y >= mHeight) return;
+
+        final int index = y * mWordsPerRow + (x >>> WORD_SHIFT);
+
+        if (value) mWords[index] |= 1L << x;
+        else mWords[index] &= ~(1L << x);
+    }
+
+    /**
+     * @return the number of set bits
+     */
+    public int cardinality() {
+        int count = 0;
+
+        for (final long word : mWords) {
+            count += Long.bitCount(word);
+        }
+
+        return count;
+    }
+
+    /**
+     * @return whether no bits are set
+     */
+    public boolean isEmpty() {
+        for (final long word : mWords) {
+            if (word != 0L) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Builds a mask of the given size holding the bits of this mask translated by
+     * (dx, dy). Bits that fall outside the new mask are dropped.
+     * @param dx the x offset of this mask in the new mask
+     * @param dy the y offset of this mask in the new mask
+     * @param width the width of the new mask
+     * @param height the height of the new mask
+     * @return the translated mask
+     */
+    public BitMask translate(final int dx, final int dy, final int width, final int height) {
+        final BitMask result = new BitMask(width, height);
+        final int wordShift = Math.floorDiv(dx, WORD_BITS);
+        final int bitShift = Math.floorMod(dx, WORD_BITS);
+
+        for (int i = 0; i < mHeight; ++i) {
+            final int row = i + dy;
+
+            if (row < 0 || row >= height) continue;
+
+            final int srcBase = i * mWordsPerRow;
+            final int dstBase = row * result.mWordsPerRow;
+
+            for (int k = 0; k < result.mWordsPerRow; ++k) {
+                // Destination word k takes its low bits from source word (k - wordShift)
+                // and its high bits from the source word below that
+                final int src = k - wordShift;
+
+                long word = 0L;
+
+                if (src >= 0 && src < mWordsPerRow) {
+                    word |= mWords[srcBase + src] << bitShift;
+                }
+                if (bitShift != 0 && src - 1 >= 0 && src - 1 < mWordsPerRow) {
+                    word |= mWords[srcBase + src - 1] >>> (WORD_BITS - bitShift);
+                }
+
+                result.mWords[dstBase + k] = word;
+            }
+        }
+
+        result.clearPadding();
+        return result;
+    }
+
+    /**
+     * Clears every bit of this mask that is set in the other mask. Both masks must
+     * have the same dimensions.
+     * @param mask the mask of bits to clear
+     * @return this mask
+     */
+    public BitMask andNot(final BitMask mask) {
+        assert mask.mWidth == mWidth && mask.mHeight == mHeight;
+
+        for (int i = 0; i < mWords.length; ++i) {
+            mWords[i] &= ~mask.mWords[i];
+        }
+
+        return this;
+    }
+
+    /**
+     * Sets every bit of this mask that is set in the other mask. Both masks must
+     * have the same dimensions.
+     * @param mask the mask of bits to set
+     * @return this mask
+     */
+    public BitMask or(final BitMask mask) {
+        assert mask.mWidth == mWidth && mask.mHeight == mHeight;
+
+        for (int i = 0; i < mWords.length; ++i) {
+            mWords[i] |= mask.mWords[i];
+        }
+
+        return this;
+    }
+
+    /**
+     * Clears every bit of this mask that is not set in the other mask. Both masks
+     * must have the same dimensions.
+     * @param mask the mask of bits to keep
+     * @return this mask
+     */
+    public BitMask and(final BitMask mask) {
+        assert mask.mWidth == mWidth && mask.mHeight == mHeight;
+
+        for (int i = 0; i < mWords.length; ++i) {
+            mWords[i] &= mask.mWords[i];
+        }
+
+        return this;
+    }
+
+    /**
+     * Collects the set bits, skipping empty words entirely.
+     * @param offset the offset added to every collected point
+     * @return the points whose bits are set
+     */
+    public List<Point> getPoints(final Point offset) {
+        final List<Point> points = new ArrayList<>();
+
+        for (int i = 0; i < mHeight; ++i) {
+            final int base = i * mWordsPerRow;
+
+            for (int k = 0; k < mWordsPerRow; ++k) {
+                long word = mWords[base + k];
+
+                while (word != 0L) {
+                    final int bit = Long.numberOfTrailingZeros(word);
+                    points.add(new Point((k << WORD_SHIFT) + bit + offset.x, i + offset.y));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        return points;
+    }
+
+    /**
+     * @return the points whose bits are set
+     */
+    public List<Point> getPoints() {
+        return getPoints(new Point());
+    }
+
+    /**
+     * Clears the unused bits past the width at the end of every row.
+     */
+    private void clearPadding() {
+        final int used = mWidth & (WORD_BITS - 1);
+
+        if (used == 0) return;
+
+        final long keep = (1L << used) - 1;
+
+        for (int i = 0; i < mHeight; ++i) {
+            mWords[i * mWordsPerRow + mWordsPerRow - 1] &= keep;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.tectonics.util;
+
+/**
+ * Helpers for signed fixed-point numbers stored in a long with FRACTION_BITS bits
+ * after the binary point. Integer parts up to +/- 2^31 are exact and arithmetic on
+ * them does not depend on evaluation order, unlike float sums.
+ */
+public class FixedPoint {
+
+    /**
+     * The number of bits after the binary point
+     */
+    public static final int FRACTION_BITS = 32;
+
+    /**
+     * The fixed-point representation of 1
+     */
+    public static final long ONE = 1L << FRACTION_BITS;
+
+    /**
+     * @param value a float
+     * @return the closest fixed-point value
+     */
+    public static long fromFloat(final float value) {
+        return Math.round((double) value * ONE);
+    }
+
+    /**
+     * @param value an integer
+     * @return the same value in fixed-point
+     */
+    public static long fromInt(final int value) {
+        return (long) value << FRACTION_BITS;
+    }
+
+    /**
+     * @param value a fixed-point value
+     * @return the closest float
+     */
+    public static float toFloat(final long value) {
+        return (float) ((double) value / ONE);
+    }
+
+    /**
+     * Note: This rounds towards negative infinity, unlike a cast of a float.
+     * @param value a fixed-point value
+     * @return the largest integer not above the value
+     */
+    public static int floor(final long value) {
+        return (int) (value >> FRACTION_BITS);
+    }
+
+    /**
+     * @param value a fixed-point value
+     * @param scalar the float to scale by
+     * @return the value scaled and rounded to the nearest fixed-point value
+     */
+    public static long scale(final long value, final float scalar) {
+        return Math.round(value * (double) scalar);
+    }
+
+    /**
+     * Wraps a value into [0, size). Power of two sizes are wrapped with a mask.
+     * @param value a fixed-point value
+     * @param size the (integer) size of the interval
+     * @return the wrapped value
+     */
+    public static long wrap(final long value, final int size) {
+        assert size > 0;
+
+        final long period = fromInt(size);
+
+        if ((size & (size - 1)) == 0) return value & (period - 1);
+        else return Math.floorMod(value, period);
+    }
+}
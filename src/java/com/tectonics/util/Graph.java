@@ -1,29 +1,137 @@
 package com.tectonics.util;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
-import java.util.stream.Collectors;
 
+/**
+ * <p>An undirected graph whose nodes and edges can be added and removed in constant time.</p>
+ *
+ * <p>Nodes are referred to by handles that pack a slot index with a generation. When a
+ * node is removed its slot is put on a free list and reused by a later node, but with a
+ * new generation, so stale handles to the removed node are recognized instead of silently
+ * referring to the new one. A graph built from a list hands out handles equal to the
+ * positions in the list.</p>
+ *
+ * <p>Every node keeps a packed array of the edges touching it and every edge remembers its
+ * position in both arrays, so an edge is removed by swapping the last entry into its place.
+ * The adjacency of a node can be walked with getDegree/getNeighbor/getEdgeValueAt without
+ * allocating anything.</p>
+ */
 public class Graph<T, U> {
 
-    private final Map<Integer, T> nodes;
+    /**
+     * The number of handle bits used for the slot index
+     */
+    private static final int INDEX_BITS = 20;
+
+    private static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+
+    /**
+     * Generations wrap around within the remaining (non-sign) bits
+     */
+    private static final int GENERATION_MASK = (1 << (31 - INDEX_BITS)) - 1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The node stored in each slot, null if the slot is free
+     */
+    private Object[] mNodes;
+
+    /**
+     * The current generation of each slot
+     */
+    private int[] mGenerations;
 
-    private final Map<Pair<Integer, Integer>, U> values;
+    /**
+     * The ids of the edges touching each slot, packed into the first mDegrees[slot] entries
+     */
+    private int[][] mAdjacency;
+
+    /**
+     * The number of edges touching each slot
+     */
+    private int[] mDegrees;
+
+    /**
+     * The free node slots
+     */
+    private int[] mFreeNodes;
+
+    private int mFreeNodeCount = 0;
+
+    /**
+     * The number of slots ever used
+     */
+    private int mSlotCount = 0;
 
-    private final Set<Pair<Integer, Integer>> edges;
+    /**
+     * The number of live nodes
+     */
+    private int mNodeCount = 0;
+
+    /**
+     * The slots at either end of each edge, -1 for free edges
+     */
+    private int[] mEdgeA;
+    private int[] mEdgeB;
+
+    /**
+     * The position of each edge in the adjacency arrays of either end
+     */
+    private int[] mEdgePositionA;
+    private int[] mEdgePositionB;
+
+    /**
+     * The value of each edge
+     */
+    private Object[] mEdgeValues;
+
+    /**
+     * The free edge ids
+     */
+    private int[] mFreeEdges;
+
+    private int mFreeEdgeCount = 0;
+
+    /**
+     * The number of edge ids ever used
+     */
+    private int mEdgeSlotCount = 0;
+
+    /**
+     * The number of live edges
+     */
+    private int mEdgeCount = 0;
+
+    /**
+     * The number of changes made to the nodes, edges or edge values
+     */
+    private long mModificationCount = 0L;
+
+    public Graph() {
+        mNodes = new Object[INITIAL_CAPACITY];
+        mGenerations = new int[INITIAL_CAPACITY];
+        mAdjacency = new int[INITIAL_CAPACITY][];
+        mDegrees = new int[INITIAL_CAPACITY];
+        mFreeNodes = new int[INITIAL_CAPACITY];
+
+        mEdgeA = new int[INITIAL_CAPACITY];
+        mEdgeB = new int[INITIAL_CAPACITY];
+        mEdgePositionA = new int[INITIAL_CAPACITY];
+        mEdgePositionB = new int[INITIAL_CAPACITY];
+        mEdgeValues = new Object[INITIAL_CAPACITY];
+        mFreeEdges = new int[INITIAL_CAPACITY];
+    }
 
     public Graph(final List<T> ts) {
-        nodes = new HashMap<>();
-        values = new HashMap<>();
-        edges = new HashSet<>();
+        this();
 
-        for (int i = 0; i < ts.size(); ++i) {
-            nodes.put(i, ts.get(i));
+        for (final T t : ts) {
+            addNode(t);
         }
     }
 
@@ -31,124 +139,452 @@ public class Graph<T, U> {
      * @return the number of nodes present
      */
     public int getNodeCount() {
-        return nodes.size();
+        return mNodeCount;
+    }
+
+    /**
+     * @return the number of edges present
+     */
+    public int getEdgeCount() {
+        return mEdgeCount;
+    }
+
+    /**
+     * @return the number of changes made to the nodes, edges or edge values so far, for
+     *         callers that cache data derived from the graph
+     */
+    public long getModificationCount() {
+        return mModificationCount;
     }
 
     /**
      * @return the list of nodes
      */
     public List<T> getNodes() {
-        return nodes.values().stream().collect(Collectors.toList());
+        final List<T> nodes = new ArrayList<>(mNodeCount);
+
+        for (int slot = 0; slot < mSlotCount; ++slot) {
+            if (mNodes[slot] != null) nodes.add(nodeAt(slot));
+        }
+
+        return nodes;
+    }
+
+    /**
+     * @return the handles of the nodes present
+     */
+    public List<Integer> getHandles() {
+        final List<Integer> handles = new ArrayList<>(mNodeCount);
+
+        for (int slot = 0; slot < mSlotCount; ++slot) {
+            if (mNodes[slot] != null) handles.add(handleOf(slot));
+        }
+
+        return handles;
     }
 
     /**
-     * @return the collection of edges
+     * Note: This builds a new collection, use getEdgeCapacity/isEdge/getEdgeSource/
+     * getEdgeTarget to walk the edges without allocating.
+     * @return the collection of edges as pairs of node handles
      */
     public Collection<Pair<Integer, Integer>> getEdges() {
+        final List<Pair<Integer, Integer>> edges = new ArrayList<>(mEdgeCount);
+
+        for (int edge = 0; edge < mEdgeSlotCount; ++edge) {
+            if (isEdge(edge)) {
+                edges.add(new Pair<>(getEdgeSource(edge), getEdgeTarget(edge)));
+            }
+        }
+
         return edges;
     }
 
     /**
+     * @return one past the largest edge id in use, for walking the edges by id
+     */
+    public int getEdgeCapacity() {
+        return mEdgeSlotCount;
+    }
+
+    /**
+     * @param edge an edge id
+     * @return whether the edge id refers to a live edge
+     */
+    public boolean isEdge(final int edge) {
+        return edge >= 0 && edge < mEdgeSlotCount && mEdgeA[edge] != -1;
+    }
+
+    /**
+     * @param edge a live edge id
+     * @return the handle of the first node of the edge
+     */
+    public int getEdgeSource(final int edge) {
+        return handleOf(mEdgeA[edge]);
+    }
+
+    /**
+     * @param edge a live edge id
+     * @return the handle of the second node of the edge
+     */
+    public int getEdgeTarget(final int edge) {
+        return handleOf(mEdgeB[edge]);
+    }
+
+    /**
+     * @param edge a live edge id
+     * @return the value of the edge
+     */
+    @SuppressWarnings("unchecked")
+    public U getEdgeValueById(final int edge) {
+        return (U) mEdgeValues[edge];
+    }
+
+    /**
+     * Note: This is a linear search, prefer keeping the handle returned by addNode.
      * @param target the target object
-     * @return the node index of the target object (or -1 if it is not present)
+     * @return the node handle of the target object (or -1 if it is not present)
      */
     public int getIndex(final T target) {
-        for (int i = 0; i < nodes.size(); ++i) {
-            if (target == nodes.get(i)) {
-                return i;
+        for (int slot = 0; slot < mSlotCount; ++slot) {
+            if (mNodes[slot] != null && target == mNodes[slot]) {
+                return handleOf(slot);
             }
         }
         return -1;
     }
 
     /**
-     * @param index the index of the node
-     * @return the optional node at that index
+     * @param handle a node handle
+     * @return whether the handle refers to a live node
+     */
+    public boolean contains(final int handle) {
+        final int slot = handle & INDEX_MASK;
+        return handle >= 0
+            && slot < mSlotCount
+            && mNodes[slot] != null
+            && mGenerations[slot] == (handle >>> INDEX_BITS);
+    }
+
+    /**
+     * @param index the handle of the node
+     * @return the optional node at that handle
      */
     public Optional<T> getNode(final int index) {
-        final T node = nodes.get(index);
-        if (node == null) return Optional.empty();
-        else return Optional.of(node);
+        return Optional.ofNullable(getNodeValue(index));
+    }
+
+    /**
+     * Same as getNode, without wrapping the result.
+     * @param handle the handle of the node
+     * @return the node, or null if the handle is stale
+     */
+    public T getNodeValue(final int handle) {
+        if (!contains(handle)) return null;
+        return nodeAt(handle & INDEX_MASK);
+    }
+
+    /**
+     * @param handle the handle of a live node
+     * @return the number of edges touching the node
+     */
+    public int getDegree(final int handle) {
+        assert contains(handle);
+        return mDegrees[handle & INDEX_MASK];
+    }
+
+    /**
+     * @param handle the handle of a live node
+     * @param k the position in the node's adjacency, in [0, degree)
+     * @return the id of the k-th edge touching the node
+     */
+    public int getEdgeAt(final int handle, final int k) {
+        return mAdjacency[handle & INDEX_MASK][k];
+    }
+
+    /**
+     * @param handle the handle of a live node
+     * @param k the position in the node's adjacency, in [0, degree)
+     * @return the handle of the node at the other end of the k-th edge
+     */
+    public int getNeighbor(final int handle, final int k) {
+        final int slot = handle & INDEX_MASK;
+        final int edge = mAdjacency[slot][k];
+        return handleOf(mEdgeA[edge] == slot ? mEdgeB[edge] : mEdgeA[edge]);
+    }
+
+    /**
+     * @param handle the handle of a live node
+     * @param k the position in the node's adjacency, in [0, degree)
+     * @return the value of the k-th edge touching the node
+     */
+    @SuppressWarnings("unchecked")
+    public U getEdgeValueAt(final int handle, final int k) {
+        return (U) mEdgeValues[mAdjacency[handle & INDEX_MASK][k]];
     }
 
     /**
      * Determines whether the graph contains the edge.
-     * @param i the first node index
-     * @param j the second node index
+     * @param i the first node handle
+     * @param j the second node handle
      * @return whether an edge exists between node i and node j
      */
     public boolean hasEdge(final int i, final int j) {
-        return edges.contains(buildEdge(i, j));
+        return findEdge(i, j) != -1;
     }
 
     /**
-     * Inserts an edge into the graph. Note that this method will not insert
-     * reflexive edges, i.e., i must not equal j to be inserted.
-     * @param i the first node index
-     * @param j the second node index
+     * Inserts an edge into the graph, or replaces the value of an existing edge. Note
+     * that this method will not insert reflexive edges, i.e., i must not equal j to be
+     * inserted.
+     * @param i the first node handle
+     * @param j the second node handle
      * @return whether the edge was successfully inserted
      */
     public boolean addEdge(final int i, final int j, final U value) {
-        if (i == j) {
+        if (i == j || !contains(i) || !contains(j)) {
             return false;
         }
 
-        if (i < nodes.size() && j < nodes.size()) {
-            final Pair<Integer, Integer> edge = buildEdge(i, j);
-            edges.add(edge);
-            values.put(edge, value);
+        final int existing = findEdge(i, j);
+
+        ++mModificationCount;
+
+        if (existing != -1) {
+            mEdgeValues[existing] = value;
             return true;
         }
-        return false;
+
+        final int edge;
+
+        if (mFreeEdgeCount > 0) {
+            edge = mFreeEdges[--mFreeEdgeCount];
+        }
+        else {
+            if (mEdgeSlotCount == mEdgeA.length) growEdges();
+            edge = mEdgeSlotCount++;
+        }
+
+        final int a = i & INDEX_MASK;
+        final int b = j & INDEX_MASK;
+
+        mEdgeA[edge] = a;
+        mEdgeB[edge] = b;
+        mEdgePositionA[edge] = appendAdjacency(a, edge);
+        mEdgePositionB[edge] = appendAdjacency(b, edge);
+        mEdgeValues[edge] = value;
+        ++mEdgeCount;
+
+        return true;
+    }
+
+    /**
+     * Removes the edge between two nodes.
+     * @param i the first node handle
+     * @param j the second node handle
+     * @return whether an edge was removed
+     */
+    public boolean removeEdge(final int i, final int j) {
+        final int edge = findEdge(i, j);
+
+        if (edge == -1) return false;
+
+        removeEdgeById(edge);
+        return true;
+    }
+
+    /**
+     * Removes an edge in constant time.
+     * @param edge a live edge id
+     */
+    public void removeEdgeById(final int edge) {
+        assert isEdge(edge);
+
+        removeAdjacency(mEdgeA[edge], mEdgePositionA[edge]);
+        removeAdjacency(mEdgeB[edge], mEdgePositionB[edge]);
+
+        mEdgeA[edge] = -1;
+        mEdgeB[edge] = -1;
+        mEdgeValues[edge] = null;
+
+        if (mFreeEdgeCount == mFreeEdges.length) mFreeEdges = Arrays.copyOf(mFreeEdges, 2 * mFreeEdges.length);
+        mFreeEdges[mFreeEdgeCount++] = edge;
+        --mEdgeCount;
+        ++mModificationCount;
     }
 
     /**
-     * Adds a node to this graph
+     * Adds a node to this graph, reusing a free slot if there is one.
      * @param target the node to insert
+     * @return the handle of the new node
      */
-    public void addNode(final T target) {
-        nodes.put(nodes.size(), target);
+    public int addNode(final T target) {
+        assert target != null;
+
+        final int slot;
+
+        if (mFreeNodeCount > 0) {
+            slot = mFreeNodes[--mFreeNodeCount];
+        }
+        else {
+            if (mSlotCount == mNodes.length) growNodes();
+            slot = mSlotCount++;
+            mAdjacency[slot] = new int[4];
+        }
+
+        assert slot <= INDEX_MASK;
+
+        mNodes[slot] = target;
+        mDegrees[slot] = 0;
+        ++mNodeCount;
+        ++mModificationCount;
+
+        return handleOf(slot);
+    }
+
+    /**
+     * Removes a node along with its edges, in time proportional to its degree. The
+     * slot is reused by a later node under a new generation.
+     * @param handle the handle of the node
+     * @return whether a node was removed
+     */
+    public boolean removeNode(final int handle) {
+        if (!contains(handle)) return false;
+
+        final int slot = handle & INDEX_MASK;
+
+        while (mDegrees[slot] > 0) {
+            removeEdgeById(mAdjacency[slot][mDegrees[slot] - 1]);
+        }
+
+        mNodes[slot] = null;
+        mGenerations[slot] = (mGenerations[slot] + 1) & GENERATION_MASK;
+
+        if (mFreeNodeCount == mFreeNodes.length) mFreeNodes = Arrays.copyOf(mFreeNodes, 2 * mFreeNodes.length);
+        mFreeNodes[mFreeNodeCount++] = slot;
+        --mNodeCount;
+        ++mModificationCount;
+
+        return true;
     }
 
     /**
      * Method to compute the list of neighboring nodes to a specific node.
-     * @param index the index of the node whose neighbors are to be retrieved
+     * Note: This builds a new list, use getDegree/getNeighbor to walk the neighbors
+     * without allocating.
+     * @param index the handle of the node whose neighbors are to be retrieved
      * @return the list of neighbors
      */
     public List<Integer> getNeighbors(final int index) {
-        return edges.parallelStream()
-            .filter(pair -> pair.first == index || pair.second == index)
-            .map(pair -> {
-                if (pair.first == index) {
-                    return pair.second;
-                }
-                else {
-                    return pair.first;
-                }
-            })
-            .collect(Collectors.toList());
-    }
-
-    /**
-     * Retrieves the value associated with the edge between node indices i and j.
-     * @param i the first index
-     * @param j the second index
+        if (!contains(index)) return new ArrayList<>();
+
+        final int degree = getDegree(index);
+        final List<Integer> neighbors = new ArrayList<>(degree);
+
+        for (int k = 0; k < degree; ++k) {
+            neighbors.add(getNeighbor(index, k));
+        }
+
+        return neighbors;
+    }
+
+    /**
+     * Retrieves the value associated with the edge between node handles i and j.
+     * @param i the first handle
+     * @param j the second handle
      * @return the optional value associated with the edge between i and j
      */
+    @SuppressWarnings("unchecked")
     public Optional<U> getEdgeValue(final int i, final int j) {
-        final Pair<Integer, Integer> edge = buildEdge(i, j);
-        final U value = values.get(edge);
+        final int edge = findEdge(i, j);
+
+        if (edge == -1) return Optional.empty();
+        else return Optional.ofNullable((U) mEdgeValues[edge]);
+    }
+
+    /**
+     * Finds an edge by scanning the adjacency of the endpoint with the smaller degree.
+     * @param i the first handle
+     * @param j the second handle
+     * @return the id of the edge between i and j, or -1
+     */
+    private int findEdge(final int i, final int j) {
+        if (i == j || !contains(i) || !contains(j)) return -1;
+
+        final int a = i & INDEX_MASK;
+        final int b = j & INDEX_MASK;
+        final int from  = mDegrees[a] <= mDegrees[b] ? a : b;
+        final int other = from == a ? b : a;
 
-        if (value == null) return Optional.empty();
-        else return Optional.of(value);
+        for (int k = 0; k < mDegrees[from]; ++k) {
+            final int edge = mAdjacency[from][k];
+
+            if (mEdgeA[edge] == other || mEdgeB[edge] == other) {
+                return edge;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @param slot the slot of the node
+     * @param edge the edge to append to its adjacency
+     * @return the position of the edge in the adjacency
+     */
+    private int appendAdjacency(final int slot, final int edge) {
+        if (mDegrees[slot] == mAdjacency[slot].length) {
+            mAdjacency[slot] = Arrays.copyOf(mAdjacency[slot], 2 * mAdjacency[slot].length);
+        }
+
+        mAdjacency[slot][mDegrees[slot]] = edge;
+        return mDegrees[slot]++;
+    }
+
+    /**
+     * Removes an entry from a node's adjacency by moving the last entry into its place.
+     * @param slot the slot of the node
+     * @param position the position of the entry to remove
+     */
+    private void removeAdjacency(final int slot, final int position) {
+        final int last = --mDegrees[slot];
+
+        if (position != last) {
+            final int moved = mAdjacency[slot][last];
+            mAdjacency[slot][position] = moved;
+
+            if (mEdgeA[moved] == slot && mEdgePositionA[moved] == last) mEdgePositionA[moved] = position;
+            else mEdgePositionB[moved] = position;
+        }
     }
 
     /**
-     * @param i the first index
-     * @param j the second index
-     * @return an edge between i and j
+     * @param slot a slot index
+     * @return the handle of the node currently in the slot
      */
-    private Pair<Integer, Integer> buildEdge(final int i, final int j) {
-        return new Pair<>(Math.min(i, j), Math.max(i, j));
+    private int handleOf(final int slot) {
+        return (mGenerations[slot] << INDEX_BITS) | slot;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T nodeAt(final int slot) {
+        return (T) mNodes[slot];
+    }
+
+    private void growNodes() {
+        final int capacity = 2 * mNodes.length;
+        mNodes = Arrays.copyOf(mNodes, capacity);
+        mGenerations = Arrays.copyOf(mGenerations, capacity);
+        mAdjacency = Arrays.copyOf(mAdjacency, capacity);
+        mDegrees = Arrays.copyOf(mDegrees, capacity);
+    }
+
+    private void growEdges() {
+        final int capacity = 2 * mEdgeA.length;
+        mEdgeA = Arrays.copyOf(mEdgeA, capacity);
+        mEdgeB = Arrays.copyOf(mEdgeB, capacity);
+        mEdgePositionA = Arrays.copyOf(mEdgePositionA, capacity);
+        mEdgePositionB = Arrays.copyOf(mEdgePositionB, capacity);
+        mEdgeValues = Arrays.copyOf(mEdgeValues, capacity);
     }
 }
@@ -0,0 +1,214 @@
+package com.tectonics.util;
+
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of int items keyed by doubles, stored in primitive arrays. Each item
+ * (a non-negative int) is in the heap at most once and knows its position, so its key can
+ * be changed or the item removed in O(log n) without searching.
+ */
+public class IndexedMinHeap {
+
+    /**
+     * The items in heap order
+     */
+    private int[] mItems;
+
+    /**
+     * The key of each heap slot
+     */
+    private double[] mKeys;
+
+    /**
+     * The heap slot of each item, -1 for items not in the heap
+     */
+    private int[] mSlots;
+
+    private int mSize = 0;
+
+    /**
+     * @param capacity the expected largest item plus one
+     */
+    public IndexedMinHeap(final int capacity) {
+        mItems = new int[Math.max(1, capacity)];
+        mKeys = new double[Math.max(1, capacity)];
+        mSlots = new int[Math.max(1, capacity)];
+        Arrays.fill(mSlots, -1);
+    }
+
+    /**
+     * @return the number of items in the heap
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return whether the heap is empty
+     */
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * @param item an item
+     * @return whether the item is in the heap
+     */
+    public boolean contains(final int item) {
+        return item >= 0 && item < mSlots.length && mSlots[item] != -1;
+    }
+
+    /**
+     * @param item an item in the heap
+     * @return the key of the item
+     */
+    public double getKey(final int item) {
+        assert contains(item);
+        return mKeys[mSlots[item]];
+    }
+
+    /**
+     * @return the item with the smallest key (the heap must not be empty)
+     */
+    public int peek() {
+        assert mSize > 0;
+        return mItems[0];
+    }
+
+    /**
+     * @return the smallest key (the heap must not be empty)
+     */
+    public double peekKey() {
+        assert mSize > 0;
+        return mKeys[0];
+    }
+
+    /**
+     * Removes the item with the smallest key.
+     * @return the removed item (the heap must not be empty)
+     */
+    public int poll() {
+        final int item = peek();
+        remove(item);
+        return item;
+    }
+
+    /**
+     * Inserts an item, or changes its key if it is already in the heap.
+     * @param item a non-negative item
+     * @param key its key
+     */
+    public void put(final int item, final double key) {
+        assert item >= 0;
+
+        if (item >= mSlots.length) {
+            final int length = mSlots.length;
+            mSlots = Arrays.copyOf(mSlots, Math.max(2 * length, item + 1));
+            Arrays.fill(mSlots, length, mSlots.length, -1);
+        }
+
+        int slot = mSlots[item];
+
+        if (slot == -1) {
+            if (mSize == mItems.length) {
+                mItems = Arrays.copyOf(mItems, 2 * mSize);
+                mKeys = Arrays.copyOf(mKeys, 2 * mSize);
+            }
+
+            slot = mSize++;
+            mItems[slot] = item;
+            mSlots[item] = slot;
+            mKeys[slot] = key;
+            siftUp(slot);
+        }
+        else {
+            final double old = mKeys[slot];
+            mKeys[slot] = key;
+
+            if (key < old) siftUp(slot);
+            else siftDown(slot);
+        }
+    }
+
+    /**
+     * Removes an item if it is in the heap.
+     * @param item the item
+     */
+    public void remove(final int item) {
+        if (!contains(item)) return;
+
+        final int slot = mSlots[item];
+        final int last = --mSize;
+
+        mSlots[item] = -1;
+
+        if (slot == last) return;
+
+        // Fill the hole with the last entry, which may belong above or below it
+        move(last, slot);
+
+        final int moved = mItems[slot];
+        siftUp(slot);
+        siftDown(mSlots[moved]);
+    }
+
+    /**
+     * Removes every item.
+     */
+    public void clear() {
+        for (int slot = 0; slot < mSize; ++slot) {
+            mSlots[mItems[slot]] = -1;
+        }
+
+        mSize = 0;
+    }
+
+    private void siftUp(int slot) {
+        final int item = mItems[slot];
+        final double key = mKeys[slot];
+
+        while (slot > 0) {
+            final int parent = (slot - 1) >>> 1;
+
+            if (mKeys[parent] <= key) break;
+
+            move(parent, slot);
+            slot = parent;
+        }
+
+        place(item, key, slot);
+    }
+
+    private void siftDown(int slot) {
+        final int item = mItems[slot];
+        final double key = mKeys[slot];
+
+        while (true) {
+            int child = 2 * slot + 1;
+
+            if (child >= mSize) break;
+            if (child + 1 < mSize && mKeys[child + 1] < mKeys[child]) ++child;
+            if (key <= mKeys[child]) break;
+
+            move(child, slot);
+            slot = child;
+        }
+
+        place(item, key, slot);
+    }
+
+    /**
+     * Copies the entry of one slot into another.
+     */
+    private void move(final int from, final int to) {
+        mItems[to] = mItems[from];
+        mKeys[to] = mKeys[from];
+        mSlots[mItems[to]] = to;
+    }
+
+    private void place(final int item, final double key, final int slot) {
+        mItems[slot] = item;
+        mKeys[slot] = key;
+        mSlots[item] = slot;
+    }
+}
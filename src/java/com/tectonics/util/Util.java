@@ -44,34 +44,45 @@ public class Util {
     }
 
     /**
-     * TODO: Finish writing this method
+     * Rasterizes a line with Bresenham's algorithm, in any direction.
+     * @param start the first end of the line
+     * @param end the last end of the line
+     * @return the cells along the line from the cell of start to the cell of end, both
+     *         included, each a step (possibly diagonal) from the one before
      */
     public static List<Point> getLine(final Vec start, final Vec end) {
-        final List<Point> points = new ArrayList<>();
-
         final Point point1 = start.truncate();
         final Point point2 = end.truncate();
-        final Point delta = subPoints(point1, point2);
 
-        if (Math.abs(delta.y) == 0) {
-            final int minX = Math.min(point1.x, point2.x);
-            
-            for (int i = 0; i <= delta.x; ++i) {
-                points.add(new Point(minX + i, point1.y));
-            }
+        final int dx = Math.abs(point2.x - point1.x);
+        final int dy = -Math.abs(point2.y - point1.y);
+        final int stepX = point1.x < point2.x ? 1 : -1;
+        final int stepY = point1.y < point2.y ? 1 : -1;
 
-            return points;
-        }
-        else if (Math.abs(delta.x) == 0) {
-            final int minY = Math.min(point1.y, point2.y);
+        final List<Point> points = new ArrayList<>(Math.max(dx, -dy) + 1);
+
+        int x = point1.x;
+        int y = point1.y;
+        int error = dx + dy;
+
+        while (true) {
+            points.add(new Point(x, y));
+
+            if (x == point2.x && y == point2.y) break;
 
-            for (int i = 0; i <= delta.y; ++i) {
-                points.add(new Point(point1.x, minY + i));
+            final int error2 = 2 * error;
+
+            if (error2 >= dy) {
+                error += dy;
+                x += stepX;
             }
 
-            return points;
+            if (error2 <= dx) {
+                error += dx;
+                y += stepY;
+            }
         }
-    
+
         return points;
     }
 
@@ -171,7 +182,7 @@ public class Util {
      * @return whether the two intervals overlap
      */
     public static boolean intervalsOverlap(final int a1, final int b1, final int a2, final int b2) {
-        return onInterval(a1, b1, a2) || onInterval(a1, b1, b2);
+        return onInterval(a1, b1, a2) || onInterval(a1, b1, b2) || onInterval(a2, b2, a1);
     }
 
     /**
@@ -182,13 +193,10 @@ public class Util {
      */
     public static float mod(final float a, final float b) {
         final float adjustedB = Math.abs(b);
+        final float result = a - adjustedB * (float) Math.floor(a / adjustedB);
 
-        float result = a;
-
-        while (result < 0f) result += adjustedB;
-        while (result > b) result -= adjustedB;
-
-        return result;
+        // Rounding can land exactly on the modulus for tiny negative inputs
+        return result >= adjustedB ? 0f : result;
     }
 
     /**
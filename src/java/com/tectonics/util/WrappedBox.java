@@ -141,6 +141,18 @@ public class WrappedBox {
         return wrap(Util.sumPoints(ps));
     }
 
+    /**
+     * Computes the shortest displacement from one point to another in the wrapped context.
+     * @param from the starting point
+     * @param to the ending point
+     * @return the displacement, with x in [-width/2, width/2) and y in [-height/2, height/2)
+     */
+    public Point displacement(final Point from, final Point to) {
+        final int dx = Math.floorMod(to.x - from.x + mWidth / 2, mWidth) - mWidth / 2;
+        final int dy = Math.floorMod(to.y - from.y + mHeight / 2, mHeight) - mHeight / 2;
+        return new Point(dx, dy);
+    }
+
     /**
      * Determines the distance between two points in the wrapped context.
      * @param point1 the first point